@@ -208,105 +208,47 @@ public class SVGParser {
         }
     }
 
-    private static NumberParse parseNumbers(String s) {
-        //Util.debug("Parsing numbers from: '" + s + "'");
+    /**
+     * Parses the numbers of s from start into np, up to the next command
+     * letter or ')'. The numbers are read in place with ParserHelper, without
+     * substrings nor boxing, and np is reused by the caller.
+     */
+    private static NumberParse parseNumbers(String s, int start, NumberParse np) {
+        np.clear();
         int n = s.length();
-        int p = 0;
-        ArrayList<Float> numbers = new ArrayList<Float>();
-        boolean skipChar = false;
-        for (int i = 1; i < n; i++) {
-            if (skipChar) {
-                skipChar = false;
-                continue;
-            }
-            char c = s.charAt(i);
-            switch (c) {
-                // This ends the parsing, as we are on the next element
-                case 'M':
-                case 'm':
-                case 'Z':
-                case 'z':
-                case 'L':
-                case 'l':
-                case 'H':
-                case 'h':
-                case 'V':
-                case 'v':
-                case 'C':
-                case 'c':
-                case 'S':
-                case 's':
-                case 'Q':
-                case 'q':
-                case 'T':
-                case 't':
-                case 'a':
-                case 'A':
-                case ')': {
-                    String str = s.substring(p, i);
-                    if (str.trim().length() > 0) {
-                        //Util.debug("  Last: " + str);
-                        Float f = Float.parseFloat(str);
-                        numbers.add(f);
-                    }
-                    p = i;
-                    return new NumberParse(numbers, p);
-                }
-                case '\n':
-                case '\t':
-                case ' ':
-                case ',':
-                case '-': {
-                    String str = s.substring(p, i);
-                    // Just keep moving if multiple whitespace
-                    if (str.trim().length() > 0) {
-                        //Util.debug("  Next: " + str);
-                        if (c == '-' && s.charAt(i-1) == 'e') {
-                            // This is not the end of a number, continue
-                            continue;
-                        }
-                        Float f = Float.parseFloat(str);
-                        numbers.add(f);
-                        if (c == '-') {
-                            p = i;
-                        } else {
-                            p = i + 1;
-                            skipChar = true;
-                        }
-                    } else {
-                        p++;
-                    }
-                    break;
-                }
-            }
+        if (start >= n) {
+            return np;
         }
-        String last = s.substring(p);
-        if (last.length() > 0) {
-            //Util.debug("  Last: " + last);
-            try {
-                numbers.add(Float.parseFloat(last));
-            } catch (NumberFormatException nfe) {
-                // Just white-space, forget it
+        ParserHelper ph = new ParserHelper(s, start);
+        while (ph.pos < n) {
+            char c = s.charAt(ph.pos);
+            if (c == ',' || Character.isWhitespace(c)) {
+                ph.advance();
+            } else if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.') {
+                np.add(ph.parseFloat());
+            } else {
+                // Next element
+                break;
             }
-            p = s.length();
         }
-        return new NumberParse(numbers, p);
+        np.nextCmd = ph.pos;
+        return np;
     }
 
-    private static Matrix parseTransform(String s) {
+    private static Matrix parseTransform(String s, NumberParse np) {
         if (s.startsWith("matrix(")) {
-            NumberParse np = parseNumbers(s.substring("matrix(".length()));
-            if (np.numbers.size() == 6) {
+            parseNumbers(s, "matrix(".length(), np);
+            if (np.size() == 6) {
                 Matrix matrix = new Matrix();
                 matrix.setValues(new float[]{
                         // Row 1
-                        np.numbers.get(0),
-                        np.numbers.get(2),
-                        np.numbers.get(4),
+                        np.getNumber(0),
+                        np.getNumber(2),
+                        np.getNumber(4),
                         // Row 2
-                        np.numbers.get(1),
-                        np.numbers.get(3),
-                        np.numbers.get(5),
+                        np.getNumber(1),
+                        np.getNumber(3),
+                        np.getNumber(5),
                         // Row 3
                         0,
                         0,
@@ -315,54 +257,54 @@ public class SVGParser {
                 return matrix;
             }
         } else if (s.startsWith("translate(")) {
-            NumberParse np = parseNumbers(s.substring("translate(".length()));
-            if (np.numbers.size() > 0) {
-                float tx = np.numbers.get(0);
+            parseNumbers(s, "translate(".length(), np);
+            if (np.size() > 0) {
+                float tx = np.getNumber(0);
                 float ty = 0;
-                if (np.numbers.size() > 1) {
-                    ty = np.numbers.get(1);
+                if (np.size() > 1) {
+                    ty = np.getNumber(1);
                 }
                 Matrix matrix = new Matrix();
                 matrix.postTranslate(tx, ty);
                 return matrix;
             }
         } else if (s.startsWith("scale(")) {
-            NumberParse np = parseNumbers(s.substring("scale(".length()));
-            if (np.numbers.size() > 0) {
-                float sx = np.numbers.get(0);
+            parseNumbers(s, "scale(".length(), np);
+            if (np.size() > 0) {
+                float sx = np.getNumber(0);
                 float sy = 0;
-                if (np.numbers.size() > 1) {
-                    sy = np.numbers.get(1);
+                if (np.size() > 1) {
+                    sy = np.getNumber(1);
                 }
                 Matrix matrix = new Matrix();
                 matrix.postScale(sx, sy);
                 return matrix;
             }
         } else if (s.startsWith("skewX(")) {
-            NumberParse np = parseNumbers(s.substring("skewX(".length()));
-            if (np.numbers.size() > 0) {
-                float angle = np.numbers.get(0);
+            parseNumbers(s, "skewX(".length(), np);
+            if (np.size() > 0) {
+                float angle = np.getNumber(0);
                 Matrix matrix = new Matrix();
                 matrix.postSkew((float) Math.tan(angle), 0);
                 return matrix;
             }
         } else if (s.startsWith("skewY(")) {
-            NumberParse np = parseNumbers(s.substring("skewY(".length()));
-            if (np.numbers.size() > 0) {
-                float angle = np.numbers.get(0);
+            parseNumbers(s, "skewY(".length(), np);
+            if (np.size() > 0) {
+                float angle = np.getNumber(0);
                 Matrix matrix = new Matrix();
                 matrix.postSkew(0, (float) Math.tan(angle));
                 return matrix;
             }
         } else if (s.startsWith("rotate(")) {
-            NumberParse np = parseNumbers(s.substring("rotate(".length()));
-            if (np.numbers.size() > 0) {
-                float angle = np.numbers.get(0);
+            parseNumbers(s, "rotate(".length(), np);
+            if (np.size() > 0) {
+                float angle = np.getNumber(0);
                 float cx = 0;
                 float cy = 0;
-                if (np.numbers.size() > 2) {
-                    cx = np.numbers.get(1);
-                    cy = np.numbers.get(2);
+                if (np.size() > 2) {
+                    cx = np.getNumber(1);
+                    cy = np.getNumber(2);
                 }
                 Matrix matrix = new Matrix();
                 matrix.postTranslate(cx, cy);
@@ -633,11 +575,11 @@ public class SVGParser {
         p.addArc(oval, (float)phy1 * 180, (float)deltaPhy * 180);
     }
 
-    private static NumberParse getNumberParseAttr(String name, Attributes attributes) {
+    private static NumberParse getNumberParseAttr(String name, Attributes attributes, NumberParse np) {
         int n = attributes.getLength();
         for (int i = 0; i < n; i++) {
             if (attributes.getLocalName(i).equals(name)) {
-                return parseNumbers(attributes.getValue(i));
+                return parseNumbers(attributes.getValue(i), 0, np);
             }
         }
         return null;
@@ -685,13 +627,31 @@ public class SVGParser {
         }
     }
 
+    /**
+     * Numbers parsed from an attribute, in a primitive buffer that grows as
+     * needed and is reused from one parse to the next.
+     */
     private static class NumberParse {
-        private ArrayList<Float> numbers;
+        private float[] numbers = new float[16];
+        private int size;
         private int nextCmd;
 
-        public NumberParse(ArrayList<Float> numbers, int nextCmd) {
-            this.numbers = numbers;
-            this.nextCmd = nextCmd;
+        public void clear() {
+            size = 0;
+            nextCmd = 0;
+        }
+
+        public void add(float f) {
+            if (size == numbers.length) {
+                float[] grown = new float[size * 2];
+                System.arraycopy(numbers, 0, grown, 0, size);
+                numbers = grown;
+            }
+            numbers[size++] = f;
+        }
+
+        public int size() {
+            return size;
         }
 
         public int getNextCmd() {
@@ -699,7 +659,7 @@ public class SVGParser {
         }
 
         public float getNumber(int index) {
-            return numbers.get(index);
+            return numbers[index];
         }
 
     }
@@ -831,6 +791,10 @@ public class SVGParser {
         Paint paint;
         // Scratch rect (so we aren't constantly making new ones)
         RectF rect = new RectF();
+        // Scratch numbers of points, and of transforms apart as they
+        // are parsed while the points are still used
+        NumberParse numberParse = new NumberParse();
+        NumberParse transformParse = new NumberParse();
         RectF bounds = null;
         RectF limits = new RectF(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
 
@@ -1011,7 +975,7 @@ public class SVGParser {
             }
             String transform = getStringAttr("gradientTransform", atts);
             if (transform != null) {
-                gradient.matrix = parseTransform(transform);
+                gradient.matrix = parseTransform(transform, transformParse);
             }
             String xlink = getStringAttr("href", atts);
             if (xlink != null) {
@@ -1074,7 +1038,7 @@ public class SVGParser {
             final String transform = getStringAttr("transform", atts);
             pushed = transform != null;
             if (pushed) {
-                final Matrix matrix = parseTransform(transform);
+                final Matrix matrix = parseTransform(transform, transformParse);
                 canvas.save();
                 canvas.concat(matrix);
             }
@@ -1158,7 +1122,7 @@ public class SVGParser {
                 // Get it's transformation matrix if any
                 String transform = getStringAttr("transform", atts);
                 if (transform != null) {
-                    final Matrix matrix = parseTransform(transform);
+                    final Matrix matrix = parseTransform(transform, transformParse);
                     groupMatrixes.add(matrix);
                     canvas.save();
                     canvas.concat(matrix);
@@ -1243,17 +1207,16 @@ public class SVGParser {
                     popTransform();
                 }
             } else if (!hidden && (localName.equals("polygon") || localName.equals("polyline"))) {
-                NumberParse numbers = getNumberParseAttr("points", atts);
-                if (numbers != null) {
+                NumberParse points = getNumberParseAttr("points", atts, numberParse);
+                if (points != null) {
                     Path p = new Path();
-                    ArrayList<Float> points = numbers.numbers;
                     if (points.size() > 1) {
                         pushTransform(atts);
                         Properties props = new Properties(atts);
-                        p.moveTo(points.get(0), points.get(1));
-                        for (int i = 2; i < points.size(); i += 2) {
-                            float x = points.get(i);
-                            float y = points.get(i + 1);
+                        p.moveTo(points.getNumber(0), points.getNumber(1));
+                        for (int i = 2; i + 1 < points.size(); i += 2) {
+                            float x = points.getNumber(i);
+                            float y = points.getNumber(i + 1);
                             p.lineTo(x, y);
                         }
                         // Don't close a polyline
@@ -35,6 +35,20 @@ class JSONEntity extends StringEntity
 		setContentEncoding(encoding);
 	}
 
+	/**
+	 * Constructor from an already formatted request
+	 * @param json
+	 * @param encoding	Chosen encoding, or empty for the default one
+	 * @throws UnsupportedEncodingException
+	 */
+	public JSONEntity(String json, String encoding) throws UnsupportedEncodingException
+	{
+		super(json, encoding.length() > 0 ? encoding : HTTP.DEFAULT_CONTENT_CHARSET);
+		if(encoding.length() > 0){
+			setContentEncoding(encoding);
+		}
+	}
+
 	@Override
 	public Header getContentType() 
 	{
@@ -0,0 +1,110 @@
+package org.alexd.jsonrpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A list of calls to send in one request with JSONRPCClient.callBatch.
+ * Each call gets its own result or error.
+ */
+public class JSONRPCBatch
+{
+	private List<String> methods = new ArrayList<String>();
+	private List<Object[]> params = new ArrayList<Object[]>();
+	private List<JSONRPCClient.ResultReader> readers = new ArrayList<JSONRPCClient.ResultReader>();
+	private Object[] results;
+	private JSONRPCException[] errors;
+	private ExecutorService executor;
+	private long deadline;
+
+	/**
+	 * Add a call to the batch
+	 * @param method The name of the method to invoke
+	 * @param reader Converter of the result, null to get org.json values
+	 * @param params Arguments of the method
+	 * @return the index of the call to get its result
+	 */
+	public int add(String method, JSONRPCClient.ResultReader reader, Object ... params)
+	{
+		methods.add(method);
+		readers.add(reader);
+		this.params.add(params);
+		return methods.size() - 1;
+	}
+
+	/**
+	 * Send the calls concurrently when the server doesn't accept batches
+	 * @param executor Executor to run the calls
+	 * @param deadline Maximum time in milliseconds to wait for all calls,
+	 *            the calls not finished then get an error
+	 */
+	public void setParallel(ExecutorService executor, long deadline)
+	{
+		this.executor = executor;
+		this.deadline = deadline;
+	}
+
+	ExecutorService getExecutor()
+	{
+		return executor;
+	}
+
+	long getDeadline()
+	{
+		return deadline;
+	}
+
+	public int size()
+	{
+		return methods.size();
+	}
+
+	String getMethod(int index)
+	{
+		return methods.get(index);
+	}
+
+	Object[] getParams(int index)
+	{
+		return params.get(index);
+	}
+
+	JSONRPCClient.ResultReader getReader(int index)
+	{
+		return readers.get(index);
+	}
+
+	void reset()
+	{
+		results = new Object[size()];
+		errors = new JSONRPCException[size()];
+	}
+
+	void setResult(int index, Object result)
+	{
+		results[index] = result;
+	}
+
+	void setError(int index, JSONRPCException error)
+	{
+		errors[index] = error;
+	}
+
+	/**
+	 * Get the result of a call once the batch was sent
+	 * @param index index of the call given by add
+	 * @return the result of the call
+	 * @throws JSONRPCException if this call failed
+	 */
+	public Object getResult(int index) throws JSONRPCException
+	{
+		if(results == null){
+			throw new JSONRPCException("Batch not sent", null);
+		}
+		if(errors[index] != null){
+			throw errors[index];
+		}
+		return results[index];
+	}
+}
@@ -1,6 +1,13 @@
 package org.alexd.jsonrpc;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -53,6 +60,39 @@ public abstract class JSONRPCClient {
 	}
 	
 	protected abstract JSONObject doJSONRequest(JSONObject request) throws JSONRPCException;
+
+	/**
+	 * Reads the result of a call while the response is received
+	 */
+	public interface ResultReader {
+		/**
+		 * Read the result value from the reader and convert it
+		 * @param reader reader positionned on the (not null) result value
+		 * @return the converted result
+		 */
+		public Object read(JSONStreamReader reader) throws IOException, JSONException;
+	}
+
+	protected abstract Object doStreamingRequest(JSONObject request, ResultReader reader) throws JSONRPCException;
+
+	/**
+	 * Send a batch request and set the results in the batch
+	 * @return false if the server doesn't accept batches
+	 * @throws JSONRPCException if the request failed for another reason,
+	 *         batches are then still sent
+	 */
+	protected abstract boolean doBatchRequest(JSONArray requests, JSONRPCBatch batch) throws JSONRPCException;
+
+	/*
+	 * False once the server rejected a batch, calls are then sent one by one
+	 */
+	private volatile boolean batchSupported = true;
+
+	/*
+	 * Abort action of the request sent by the current call of
+	 * callConcurrently, set by the transport
+	 */
+	private final ThreadLocal<Runnable[]> currentAbort = new ThreadLocal<Runnable[]>();
 	
 	protected static JSONArray getJSONArray(Object[] array){
 		JSONArray arr = new JSONArray();
@@ -68,6 +108,11 @@ public abstract class JSONRPCClient {
 	}
 	
 	protected JSONObject doRequest(String method, Object[] params) throws JSONRPCException
+	{
+		return doJSONRequest(buildRequest(method, params));
+	}
+
+	protected JSONObject buildRequest(String method, Object[] params) throws JSONRPCException
 	{
 		//Copy method arguments in a json array
 		JSONArray jsonParams = new JSONArray();
@@ -91,7 +136,7 @@ public abstract class JSONRPCClient {
 		{
 			throw new JSONRPCException("Invalid JSON request", e1);
 		}
-		return doJSONRequest(jsonRequest);
+		return jsonRequest;
 	}
 	
 	protected JSONObject doRequest(String method, JSONObject params) throws JSONRPCException, JSONException {
@@ -176,6 +221,186 @@ public abstract class JSONRPCClient {
 		this.connectionTimeout = connectionTimeout;
 	}
 
+	/**
+	 * Perform a remote JSON-RPC method call and convert the result while
+	 * it is received, without loading the whole response in memory
+	 * @param method The name of the method to invoke
+	 * @param reader Converter of the result
+	 * @param params Arguments of the method
+	 * @return The result of the reader, or null if the result is null
+	 * @throws JSONRPCException if an error is encountered during JSON-RPC method call
+	 */
+	public Object callStreaming(String method, ResultReader reader, Object ... params) throws JSONRPCException
+	{
+		return doStreamingRequest(buildRequest(method, params), reader);
+	}
+
+	/**
+	 * Perform several remote JSON-RPC method calls in one request
+	 * (JSON-RPC 2.0 batch). If the server doesn't accept batches the calls
+	 * are sent one after the other, and so will be the next batches.
+	 * The result or error of each call is then available from the batch.
+	 * @param batch The calls to send
+	 * @throws JSONRPCException if the request failed as a whole, like for
+	 *         an HTTP error. It doesn't prevent the next batches.
+	 */
+	public void callBatch(JSONRPCBatch batch) throws JSONRPCException
+	{
+		batch.reset();
+		if(batchSupported && batch.size() > 1){
+			JSONArray requests = new JSONArray();
+			try
+			{
+				for(int i = 0; i < batch.size(); i++){
+					JSONObject request = buildRequest(batch.getMethod(i), batch.getParams(i));
+					// The id is used to match the responses
+					request.put("id", i);
+					request.put("jsonrpc", "2.0");
+					requests.put(request);
+				}
+			}
+			catch (JSONException e1)
+			{
+				throw new JSONRPCException("Invalid JSON request", e1);
+			}
+			if(doBatchRequest(requests, batch)){
+				return;
+			}
+			batchSupported = false;
+			batch.reset();
+		}
+		callSequentially(batch);
+	}
+
+	/**
+	 * Send the calls of a batch one by one, or concurrently if the batch
+	 * has an executor
+	 */
+	protected void callSequentially(final JSONRPCBatch batch)
+	{
+		if(batch.getExecutor() != null && batch.size() > 1){
+			callConcurrently(batch);
+			return;
+		}
+		for(int i = 0; i < batch.size(); i++){
+			try
+			{
+				batch.setResult(i, callOne(batch, i));
+			}
+			catch (JSONRPCException e)
+			{
+				batch.setError(i, e);
+			}
+		}
+	}
+
+	private Object callOne(JSONRPCBatch batch, int i) throws JSONRPCException
+	{
+		if(batch.getReader(i) == null){
+			return call(batch.getMethod(i), batch.getParams(i));
+		}
+		else{
+			return callStreaming(batch.getMethod(i), batch.getReader(i), batch.getParams(i));
+		}
+	}
+
+	private static void abort(Runnable[] abort)
+	{
+		Runnable action;
+		synchronized(abort){
+			action = abort[0];
+		}
+		if(action != null){
+			action.run();
+		}
+	}
+
+	/*
+	 * Set how to abort the request being sent by the current thread.
+	 * It is used only for the calls of callConcurrently that are still
+	 * running after the deadline.
+	 */
+	protected void setAbort(Runnable action)
+	{
+		Runnable[] abort = currentAbort.get();
+		if(abort != null){
+			synchronized(abort){
+				abort[0] = action;
+			}
+		}
+	}
+
+	/*
+	 * Run the calls of a batch on its executor and wait for all of them
+	 * until the deadline. Calls still running then are aborted.
+	 */
+	private void callConcurrently(final JSONRPCBatch batch)
+	{
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		final List<Runnable[]> aborts = new ArrayList<Runnable[]>();
+		for(int i = 0; i < batch.size(); i++){
+			final int index = i;
+			final Runnable[] abort = new Runnable[1];
+			aborts.add(abort);
+			tasks.add(new Callable<Object>() {
+				public Object call() throws JSONRPCException {
+					currentAbort.set(abort);
+					try
+					{
+						return callOne(batch, index);
+					}
+					finally
+					{
+						currentAbort.remove();
+						synchronized(abort){
+							abort[0] = null;
+						}
+					}
+				}
+			});
+		}
+		List<Future<Object>> results;
+		try
+		{
+			results = batch.getExecutor().invokeAll(tasks, batch.getDeadline(), TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			for(int i = 0; i < batch.size(); i++){
+				abort(aborts.get(i));
+				batch.setError(i, new JSONRPCException("Interrupted", e));
+			}
+			return;
+		}
+		for(int i = 0; i < results.size(); i++){
+			Future<Object> result = results.get(i);
+			if(result.isCancelled()){
+				// The interruption doesn't stop a blocking read,
+				// abort the request to free the thread and connection
+				abort(aborts.get(i));
+				batch.setError(i, new JSONRPCException("No response for " + batch.getMethod(i) + " before the deadline"));
+				continue;
+			}
+			try
+			{
+				batch.setResult(i, result.get());
+			}
+			catch (ExecutionException e)
+			{
+				if(e.getCause() instanceof JSONRPCException){
+					batch.setError(i, (JSONRPCException) e.getCause());
+				}
+				else{
+					batch.setError(i, new JSONRPCException("Call failed", e.getCause()));
+				}
+			}
+			catch (InterruptedException e)
+			{
+				batch.setError(i, new JSONRPCException("Interrupted", e));
+			}
+		}
+	}
+
 	/**
 	 * Perform a remote JSON-RPC method call
 	 * @param method The name of the method to invoke
@@ -1,34 +1,49 @@
 package org.alexd.jsonrpc;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -51,6 +66,21 @@ public class JSONRPCHttpClient extends JSONRPCClient
 	
 	// HTTP 1.1
 	private static final ProtocolVersion PROTOCOL_VERSION = new ProtocolVersion("HTTP", 1, 1);
+	// Connections kept to the server, one for each call thread
+	private static final int MAX_CONNECTIONS = 10;
+
+	/*
+	 * Request compression, disabled by default as not all servers accept it
+	 */
+	private boolean compressRequests = false;
+	private int compressionThreshold = 4096;
+	/*
+	 * Byte counters: body bytes sent, body bytes received on the wire
+	 * and received bytes once decompressed
+	 */
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong wireBytesReceived = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
 	
  	/**
 	 * Construct a JsonRPCClient with the given httpClient and service uri
@@ -107,15 +137,140 @@ public class JSONRPCHttpClient extends JSONRPCClient
 		SchemeRegistry registry = new SchemeRegistry();
 		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
 		registry.register(new Scheme("https", allowAllsslFactory, 443));
+		// Allow as many connections as concurrent calls (default is 2)
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
  
 		ThreadSafeClientConnManager ccm = new ThreadSafeClientConnManager(params, registry);
 		httpClient = new DefaultHttpClient(ccm, params);
 		serviceUri = uri;
 	}
 
-	protected JSONObject doJSONRequest(JSONObject jsonRequest) throws JSONRPCException
+	/**
+	 * Send gzip compressed requests when the body is at least threshold
+	 * bytes long. The server must accept gzip encoded requests.
+	 * Responses are always negociated with Accept-Encoding.
+	 *
+	 * @param compress
+	 *            true to compress large requests
+	 * @param threshold
+	 *            minimum body size in bytes to compress
+	 */
+	public void setRequestCompression(boolean compress, int threshold)
+	{
+		compressRequests = compress;
+		compressionThreshold = threshold;
+	}
+
+	public long getBytesSent()
+	{
+		return bytesSent.get();
+	}
+
+	public long getWireBytesReceived()
+	{
+		return wireBytesReceived.get();
+	}
+
+	public long getBytesReceived()
+	{
+		return bytesReceived.get();
+	}
+
+	public String getTransferStats()
+	{
+		long wire = wireBytesReceived.get();
+		long raw = bytesReceived.get();
+		return "sent " + bytesSent.get() + " bytes, received " + wire
+			+ " bytes for " + raw + " bytes of content"
+			+ (raw > 0 ? " (" + (100 - wire * 100 / raw) + "% saved)" : "");
+	}
+
+	private HttpEntity compress(HttpEntity entity) throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream((int) entity.getContentLength() / 4);
+		GZIPOutputStream gzip = new GZIPOutputStream(bos);
+		entity.writeTo(gzip);
+		gzip.close();
+		ByteArrayEntity compressed = new ByteArrayEntity(bos.toByteArray());
+		compressed.setContentType(entity.getContentType());
+		compressed.setContentEncoding("gzip");
+		return compressed;
+	}
+
+	/*
+	 * Open the content of a response, counting the bytes read
+	 * and decompressing it if required
+	 */
+	private InputStream openContent(HttpEntity entity) throws IOException
+	{
+		InputStream in = new CountingInputStream(entity.getContent(), wireBytesReceived);
+		Header contentEncoding = entity.getContentEncoding();
+		if(contentEncoding != null && contentEncoding.getValue().toLowerCase().indexOf("gzip") != -1){
+			in = new CountingInputStream(new GZIPInputStream(in), bytesReceived);
+		}
+		else{
+			in = new CountingInputStream(in, bytesReceived);
+		}
+		return in;
+	}
+
+	private String readResponse(HttpEntity entity) throws IOException
+	{
+		String charset = EntityUtils.getContentCharSet(entity);
+		if(charset == null){
+			charset = HTTP.DEFAULT_CONTENT_CHARSET;
+		}
+		InputStream in = openContent(entity);
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(8192);
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) != -1){
+				bos.write(buffer, 0, read);
+			}
+			return bos.toString(charset);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream
+	{
+		private AtomicLong counter;
+
+		public CountingInputStream(InputStream in, AtomicLong counter)
+		{
+			super(in);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if(b != -1){
+				counter.incrementAndGet();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException
+		{
+			int read = super.read(buffer, offset, count);
+			if(read > 0){
+				counter.addAndGet(read);
+			}
+			return read;
+		}
+	}
+
+	/*
+	 * Create HTTP/POST request with a JSON entity containing the request
+	 */
+	private HttpPost buildPost(String jsonRequest) throws JSONRPCException
 	{
-		// Create HTTP/POST request with a JSON entity containing the request
 		HttpPost request = new HttpPost(serviceUri);
 		HttpParams params = new BasicHttpParams();
 		HttpConnectionParams.setConnectionTimeout(params, getConnectionTimeout());
@@ -124,26 +279,244 @@ public class JSONRPCHttpClient extends JSONRPCClient
 		request.setParams(params);
 
 		if(_debug){
-			Log.i(JSONRPCHttpClient.class.toString(), "Request: " + jsonRequest.toString());
+			Log.i(JSONRPCHttpClient.class.toString(), "Request: " + jsonRequest);
 		}
 		
 		HttpEntity entity;
 		
 		try
 		{
-			if(encoding.length() > 0){
-				entity = new JSONEntity(jsonRequest, encoding);
+			entity = new JSONEntity(jsonRequest, encoding);
+			if(compressRequests && entity.getContentLength() >= compressionThreshold){
+				entity = compress(entity);
 			}
 			else{
-				entity = new JSONEntity(jsonRequest);
+				// Content-Encoding is only set for gzip, not the charset
+				((JSONEntity)entity).setContentEncoding((Header) null);
 			}
 		}
 		catch (UnsupportedEncodingException e1)
 		{
 			throw new JSONRPCException("Unsupported encoding", e1);
 		}
-                ((JSONEntity)entity).setContentEncoding("identity");
+		catch (IOException e1)
+		{
+			throw new JSONRPCException("IO error", e1);
+		}
 		request.setEntity(entity);
+		request.setHeader("Accept-Encoding", "gzip");
+		bytesSent.addAndGet(entity.getContentLength());
+		final HttpPost post = request;
+		setAbort(new Runnable() {
+			public void run() {
+				post.abort();
+			}
+		});
+		return request;
+	}
+
+	protected Object doStreamingRequest(JSONObject jsonRequest, ResultReader reader) throws JSONRPCException
+	{
+		HttpPost request = buildPost(jsonRequest.toString());
+		InputStream in = null;
+		try
+		{
+			HttpResponse response = httpClient.execute(request);
+			HttpEntity entity = response.getEntity();
+			String charset = EntityUtils.getContentCharSet(entity);
+			if(charset == null){
+				charset = HTTP.DEFAULT_CONTENT_CHARSET;
+			}
+			in = openContent(entity);
+			JSONStreamReader jsonReader = new JSONStreamReader(new InputStreamReader(in, charset));
+			Object result = null;
+			Object error = null;
+			jsonReader.beginObject();
+			while(jsonReader.hasNext()){
+				String name = jsonReader.nextName();
+				if(name.equals("result") && jsonReader.peek() != JSONStreamReader.NULL){
+					result = reader.read(jsonReader);
+				}
+				else if(name.equals("error")){
+					error = jsonReader.readJSONValue();
+				}
+				else{
+					jsonReader.skipValue();
+				}
+			}
+			jsonReader.endObject();
+			if(_debug){
+				Log.i(JSONRPCHttpClient.class.toString(), "Streamed response, transfer: " + getTransferStats());
+			}
+			// Check for remote errors
+			if(error != null && !error.equals(null)){
+				throw new JSONRPCException(error);
+			}
+			return result;
+		}
+		// Underlying errors are wrapped into a JSONRPCException instance
+		catch (ClientProtocolException e)
+		{
+			throw new JSONRPCException("HTTP error", e);
+		}
+		catch (IOException e)
+		{
+			throw new JSONRPCException("IO error", e);
+		}
+		catch (JSONException e)
+		{
+			throw new JSONRPCException("Invalid JSON response", e);
+		}
+		finally
+		{
+			if(in != null){
+				try {
+					// Releases the connection
+					in.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	protected boolean doBatchRequest(JSONArray jsonRequests, JSONRPCBatch batch) throws JSONRPCException
+	{
+		HttpPost request = buildPost(jsonRequests.toString());
+		InputStream in = null;
+		try
+		{
+			HttpResponse response = httpClient.execute(request);
+			HttpEntity entity = response.getEntity();
+			int status = response.getStatusLine().getStatusCode();
+			if(status != HttpStatus.SC_OK){
+				// A JSON error for the whole batch is a rejection,
+				// anything else (proxy or server failure) may be transient
+				String body = entity != null ? readResponse(entity).trim() : "";
+				if(body.startsWith("{")){
+					return false;
+				}
+				throw new JSONRPCException("HTTP error " + status);
+			}
+			in = openContent(entity);
+			String charset = EntityUtils.getContentCharSet(entity);
+			if(charset == null){
+				charset = HTTP.DEFAULT_CONTENT_CHARSET;
+			}
+			JSONStreamReader jsonReader = new JSONStreamReader(new InputStreamReader(in, charset));
+			if(jsonReader.peek() != JSONStreamReader.BEGIN_ARRAY){
+				// The server handled it as a single (invalid) call
+				return false;
+			}
+			boolean[] answered = new boolean[batch.size()];
+			jsonReader.beginArray();
+			while(jsonReader.hasNext()){
+				readBatchResponse(jsonReader, batch, answered);
+			}
+			jsonReader.endArray();
+			for(int i = 0; i < answered.length; i++){
+				if(!answered[i]){
+					batch.setError(i, new JSONRPCException("No response for " + batch.getMethod(i)));
+				}
+			}
+			if(_debug){
+				Log.i(JSONRPCHttpClient.class.toString(), "Streamed batch response, transfer: " + getTransferStats());
+			}
+			return true;
+		}
+		// Underlying errors are wrapped into a JSONRPCException instance
+		catch (ClientProtocolException e)
+		{
+			throw new JSONRPCException("HTTP error", e);
+		}
+		catch (IOException e)
+		{
+			throw new JSONRPCException("IO error", e);
+		}
+		catch (JSONException e)
+		{
+			throw new JSONRPCException("Invalid JSON response", e);
+		}
+		finally
+		{
+			if(in != null){
+				try {
+					// Releases the connection
+					in.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/*
+	 * Read one response of a batch. Its request is found from its id
+	 * which is the index of the call in the batch.
+	 */
+	private void readBatchResponse(JSONStreamReader jsonReader, JSONRPCBatch batch, boolean[] answered) throws IOException, JSONException
+	{
+		int index = -1;
+		Object result = null;
+		Object rawResult = null;
+		boolean hasRawResult = false;
+		Object error = null;
+		jsonReader.beginObject();
+		while(jsonReader.hasNext()){
+			String name = jsonReader.nextName();
+			if(name.equals("id") && jsonReader.peek() == JSONStreamReader.NUMBER){
+				index = ((Number) jsonReader.readValue()).intValue();
+			}
+			else if(name.equals("result")){
+				if(index >= 0 && index < batch.size()){
+					result = readResult(jsonReader, batch.getReader(index));
+				}
+				else{
+					// Id not known yet, keep it as is to convert it later
+					rawResult = jsonReader.readJSONValue();
+					hasRawResult = true;
+				}
+			}
+			else if(name.equals("error")){
+				error = jsonReader.readJSONValue();
+			}
+			else{
+				jsonReader.skipValue();
+			}
+		}
+		jsonReader.endObject();
+		if(index < 0 || index >= batch.size()){
+			return;
+		}
+		answered[index] = true;
+		if(error != null && !error.equals(null)){
+			batch.setError(index, new JSONRPCException(error));
+			return;
+		}
+		if(hasRawResult){
+			JSONRPCClient.ResultReader reader = batch.getReader(index);
+			if(reader != null && !rawResult.equals(null)){
+				String json = (rawResult instanceof String) ? JSONObject.quote((String) rawResult) : rawResult.toString();
+				result = reader.read(new JSONStreamReader(new StringReader(json)));
+			}
+			else if(reader == null){
+				result = rawResult;
+			}
+		}
+		batch.setResult(index, result);
+	}
+
+	private Object readResult(JSONStreamReader jsonReader, JSONRPCClient.ResultReader reader) throws IOException, JSONException
+	{
+		if(reader == null){
+			return jsonReader.readJSONValue();
+		}
+		if(jsonReader.peek() == JSONStreamReader.NULL){
+			jsonReader.skipValue();
+			return null;
+		}
+		return reader.read(jsonReader);
+	}
+
+	protected JSONObject doJSONRequest(JSONObject jsonRequest) throws JSONRPCException
+	{
+		HttpPost request = buildPost(jsonRequest.toString());
 		
 		try
 		{
@@ -153,13 +526,14 @@ public class JSONRPCHttpClient extends JSONRPCClient
 			
 			
 			t = System.currentTimeMillis() - t;
-                        String responseString = EntityUtils.toString(response.getEntity());
+                        String responseString = readResponse(response.getEntity());
 
 
                         responseString = responseString.trim();
 			
 			if(_debug){
 				Log.i(JSONRPCHttpClient.class.toString(), "Response: " + responseString);
+				Log.i(JSONRPCHttpClient.class.toString(), "Transfer: " + getTransferStats());
 			}
 			
 			JSONObject jsonResponse = new JSONObject(responseString);
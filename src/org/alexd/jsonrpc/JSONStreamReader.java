@@ -0,0 +1,418 @@
+package org.alexd.jsonrpc;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Minimal pull parser to read a JSON document without building it
+ * as a whole in memory.
+ * Values are read as java objects (Map, List, String, Boolean, Integer,
+ * Long, Double or null) with the same number types as org.json,
+ * or as org.json objects with readJSONValue.
+ */
+public class JSONStreamReader
+{
+	public static final int BEGIN_OBJECT = 1;
+	public static final int END_OBJECT = 2;
+	public static final int BEGIN_ARRAY = 3;
+	public static final int END_ARRAY = 4;
+	public static final int STRING = 5;
+	public static final int NUMBER = 6;
+	public static final int BOOLEAN = 7;
+	public static final int NULL = 8;
+	public static final int END_DOCUMENT = 9;
+
+	private Reader in;
+	private char[] buffer = new char[8192];
+	private int pos = 0;
+	private int limit = 0;
+	/*
+	 * For each opened object or array, true when a value was read
+	 * and a comma is expected before the next one
+	 */
+	private boolean[] needComma = new boolean[32];
+	private int depth = 0;
+	private StringBuilder sb = new StringBuilder();
+
+	public JSONStreamReader(Reader in)
+	{
+		this.in = in;
+	}
+
+	private boolean fill() throws IOException
+	{
+		limit = in.read(buffer, 0, buffer.length);
+		pos = 0;
+		if(limit <= 0){
+			limit = 0;
+			return false;
+		}
+		return true;
+	}
+
+	private int peekChar() throws IOException
+	{
+		if(pos >= limit && !fill()){
+			return -1;
+		}
+		return buffer[pos];
+	}
+
+	private int nextChar() throws IOException
+	{
+		if(pos >= limit && !fill()){
+			return -1;
+		}
+		return buffer[pos++];
+	}
+
+	private int peekClean() throws IOException
+	{
+		while(true){
+			int c = peekChar();
+			if(c == ' ' || c == '\t' || c == '\n' || c == '\r'){
+				pos++;
+			}
+			else{
+				return c;
+			}
+		}
+	}
+
+	private void expect(char expected) throws IOException, JSONException
+	{
+		int c = peekClean();
+		if(c != expected){
+			throw syntaxError("Expected '" + expected + "'", c);
+		}
+		pos++;
+	}
+
+	private JSONException syntaxError(String message, int c)
+	{
+		return new JSONException(message + " but got "
+				+ (c == -1 ? "end of document" : "'" + (char) c + "'"));
+	}
+
+	private void push() throws JSONException
+	{
+		if(depth == needComma.length){
+			boolean[] newStack = new boolean[depth * 2];
+			System.arraycopy(needComma, 0, newStack, 0, depth);
+			needComma = newStack;
+		}
+		needComma[depth++] = false;
+	}
+
+	/*
+	 * Mark a value as read in the current object or array
+	 */
+	private void valueRead()
+	{
+		if(depth > 0){
+			needComma[depth - 1] = true;
+		}
+	}
+
+	/**
+	 * Get the type of the next token without consuming it.
+	 */
+	public int peek() throws IOException, JSONException
+	{
+		int c = peekClean();
+		switch(c){
+		case '{': return BEGIN_OBJECT;
+		case '}': return END_OBJECT;
+		case '[': return BEGIN_ARRAY;
+		case ']': return END_ARRAY;
+		case '"': return STRING;
+		case 't':
+		case 'f': return BOOLEAN;
+		case 'n': return NULL;
+		case -1: return END_DOCUMENT;
+		default:
+			if(c == '-' || (c >= '0' && c <= '9')){
+				return NUMBER;
+			}
+			throw syntaxError("Unexpected value", c);
+		}
+	}
+
+	public void beginObject() throws IOException, JSONException
+	{
+		expect('{');
+		push();
+	}
+
+	public void endObject() throws IOException, JSONException
+	{
+		expect('}');
+		depth--;
+		valueRead();
+	}
+
+	public void beginArray() throws IOException, JSONException
+	{
+		expect('[');
+		push();
+	}
+
+	public void endArray() throws IOException, JSONException
+	{
+		expect(']');
+		depth--;
+		valueRead();
+	}
+
+	/**
+	 * Check if the current object or array has an other element
+	 * and move to it.
+	 */
+	public boolean hasNext() throws IOException, JSONException
+	{
+		int c = peekClean();
+		if(c == '}' || c == ']' || c == -1){
+			return false;
+		}
+		if(depth > 0 && needComma[depth - 1]){
+			expect(',');
+			needComma[depth - 1] = false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the name of the next member of an object.
+	 */
+	public String nextName() throws IOException, JSONException
+	{
+		String name = readRawString();
+		expect(':');
+		return name;
+	}
+
+	private String readRawString() throws IOException, JSONException
+	{
+		expect('"');
+		sb.setLength(0);
+		while(true){
+			int start = pos;
+			while(pos < limit){
+				char c = buffer[pos];
+				if(c == '"' || c == '\\'){
+					break;
+				}
+				pos++;
+			}
+			sb.append(buffer, start, pos - start);
+			int c = nextChar();
+			if(c == '"'){
+				return sb.toString();
+			}
+			else if(c == '\\'){
+				sb.append(readEscape());
+			}
+			else if(c == -1){
+				throw syntaxError("Unterminated string", c);
+			}
+			else{
+				// Buffer exhausted, the char read belongs to the string
+				sb.append((char) c);
+			}
+		}
+	}
+
+	private char readEscape() throws IOException, JSONException
+	{
+		int c = nextChar();
+		switch(c){
+		case 'b': return '\b';
+		case 't': return '\t';
+		case 'n': return '\n';
+		case 'f': return '\f';
+		case 'r': return '\r';
+		case 'u':
+			int value = 0;
+			for(int i = 0; i < 4; i++){
+				int digit = Character.digit(nextChar(), 16);
+				if(digit == -1){
+					throw new JSONException("Invalid unicode escape");
+				}
+				value = (value << 4) + digit;
+			}
+			return (char) value;
+		case '"':
+		case '\\':
+		case '/':
+			return (char) c;
+		default:
+			throw syntaxError("Invalid escape", c);
+		}
+	}
+
+	public String nextString() throws IOException, JSONException
+	{
+		String s = readRawString();
+		valueRead();
+		return s;
+	}
+
+	private void readLiteral(String literal) throws IOException, JSONException
+	{
+		peekClean();
+		for(int i = 0; i < literal.length(); i++){
+			int c = nextChar();
+			if(c != literal.charAt(i)){
+				throw syntaxError("Expected " + literal, c);
+			}
+		}
+	}
+
+	private Object readNumber() throws IOException
+	{
+		peekClean();
+		sb.setLength(0);
+		while(true){
+			int c = peekChar();
+			if((c >= '0' && c <= '9') || c == '-' || c == '+'
+					|| c == '.' || c == 'e' || c == 'E'){
+				sb.append((char) c);
+				pos++;
+			}
+			else{
+				break;
+			}
+		}
+		String s = sb.toString();
+		// Same conversion as org.json
+		try{
+			if(s.indexOf('.') > -1 || s.indexOf('e') > -1 || s.indexOf('E') > -1){
+				return Double.valueOf(s);
+			}
+			Long l = Long.valueOf(s);
+			if(l.longValue() == l.intValue()){
+				return Integer.valueOf(l.intValue());
+			}
+			return l;
+		}
+		catch(NumberFormatException e){
+			return s;
+		}
+	}
+
+	/**
+	 * Read the next value as java objects. Objects are read as sorted maps
+	 * and arrays as lists.
+	 */
+	public Object readValue() throws IOException, JSONException
+	{
+		switch(peek()){
+		case BEGIN_OBJECT:
+			return readObject();
+		case BEGIN_ARRAY:
+			List<Object> list = new ArrayList<Object>();
+			beginArray();
+			while(hasNext()){
+				list.add(readValue());
+			}
+			endArray();
+			return list;
+		case STRING:
+			return nextString();
+		case NUMBER:
+			Object number = readNumber();
+			valueRead();
+			return number;
+		case BOOLEAN:
+			boolean value = (peekClean() == 't');
+			readLiteral(value ? "true" : "false");
+			valueRead();
+			return Boolean.valueOf(value);
+		case NULL:
+			readLiteral("null");
+			valueRead();
+			return null;
+		default:
+			throw syntaxError("Expected a value", peekClean());
+		}
+	}
+
+	/**
+	 * Read the next value that must be an object.
+	 */
+	public Map<String, Object> readObject() throws IOException, JSONException
+	{
+		Map<String, Object> map = new TreeMap<String, Object>();
+		beginObject();
+		while(hasNext()){
+			String name = nextName();
+			map.put(name, readValue());
+		}
+		endObject();
+		return map;
+	}
+
+	/**
+	 * Read the next value as org.json objects (JSONObject, JSONArray,
+	 * JSONObject.NULL or a basic type).
+	 */
+	public Object readJSONValue() throws IOException, JSONException
+	{
+		switch(peek()){
+		case BEGIN_OBJECT:
+			JSONObject object = new JSONObject();
+			beginObject();
+			while(hasNext()){
+				String name = nextName();
+				object.put(name, readJSONValue());
+			}
+			endObject();
+			return object;
+		case BEGIN_ARRAY:
+			JSONArray array = new JSONArray();
+			beginArray();
+			while(hasNext()){
+				array.put(readJSONValue());
+			}
+			endArray();
+			return array;
+		default:
+			Object value = readValue();
+			return (value == null) ? JSONObject.NULL : value;
+		}
+	}
+
+	/**
+	 * Skip the next value.
+	 */
+	public void skipValue() throws IOException, JSONException
+	{
+		switch(peek()){
+		case BEGIN_OBJECT:
+			beginObject();
+			while(hasNext()){
+				nextName();
+				skipValue();
+			}
+			endObject();
+			break;
+		case BEGIN_ARRAY:
+			beginArray();
+			while(hasNext()){
+				skipValue();
+			}
+			endArray();
+			break;
+		default:
+			readValue();
+		}
+	}
+}
@@ -235,7 +235,8 @@ public class FormView extends Activity
                 // Update command and get back
                 this.updateTempModel();
                 this.command.getData().merge(Session.current.tempModel);
-                DataCache db = new DataCache(this);
+                DelayedRequester.current.commandEdited(this.command, this);
+                DataCache db = DataCache.get(this);
                 db.storeData(this.command.getData().getClassName(),
                              this.command.getData());
                 this.finish();
@@ -613,8 +614,12 @@ public class FormView extends Activity
             // Standard connected behaviour: send to server
             this.showLoadingDialog(LOADING_SEND);
             Session s = Session.current;
+            // Read back only what the form shows
+            ModelViewTypes views = new ModelViewTypes(this.view.getModelName());
+            views.putView(this.view.getType(), this.view);
             this.callId = TrytonCall.saveData(s.userId, s.cookie, s.prefs,
-                                              s.tempModel, s.editedModel, this,
+                                              s.tempModel, s.editedModel,
+                                              views, this,
                                               new Handler(this));
         }
     }
@@ -676,14 +681,14 @@ public class FormView extends Activity
     /** Delete in database and go back */
     private void postDelete() {
         // Delete from local cache and go back
-        DataCache db = new DataCache(this);
+        DataCache db = DataCache.get(this);
         db.deleteData(Session.current.editedModel);
         this.endQuit();
     }
 
     private void postCreate(Model newModel) {
         // Save locally
-        DataCache db = new DataCache(this);
+        DataCache db = DataCache.get(this);
         db.addOne(newModel.getClassName());
         db.storeData(newModel.getClassName(), newModel);
         // Update parent if necessary
@@ -707,7 +712,7 @@ public class FormView extends Activity
 
     private void postUpdate(Model updated) {
         // Save locally and continue
-        DataCache db = new DataCache(this);
+        DataCache db = DataCache.get(this);
         db.storeData(updated.getClassName(), updated);
         this.endQuit();
     }
@@ -798,7 +803,8 @@ public class FormView extends Activity
             } else {
                 // Update command and get back to pending requests
                 this.command.getData().merge(Session.current.tempModel);
-                DataCache db = new DataCache(this);
+                DelayedRequester.current.commandEdited(this.command, this);
+                DataCache db = DataCache.get(this);
                 db.storeData(this.command.getData().getClassName(),
                              this.command.getData());
                 this.finish();
@@ -24,46 +24,72 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.view.KeyEvent;
 import android.view.View;
 import android.widget.TextView;
 import android.widget.ProgressBar;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.tryton.client.data.DataCache;
 import org.tryton.client.data.Session;
 import org.tryton.client.models.Model;
+import org.tryton.client.models.ModelViewTypes;
 import org.tryton.client.tools.AlertBuilder;
+import org.tryton.client.tools.CallExecutor;
 import org.tryton.client.tools.DelayedRequester;
 import org.tryton.client.tools.TrytonCall;
 
 /** List pending requests and handles sending them all.
- * It reads data from DelayedRequester.current.  */
+ * It reads data from DelayedRequester.current.
+ * Commands that don't depend on each other (see
+ * DelayedRequester.getReadyCommand) are sent at the same time, up to
+ * REPLAY_WINDOW calls. */
 public class PendingRequests extends Activity implements Handler.Callback {
 
+    /** Maximum number of calls at the same time. It is the number of
+     * interactive threads of CallExecutor, more would only wait. */
+    private static final int REPLAY_WINDOW =
+        CallExecutor.getThreadCount(false);
+
     private TextView remaining;
+    private TextView rate;
     private ProgressBar progressBar;
-    private int callId;
+    /** Command journal ids by call id for the calls being sent. */
+    private Map<Integer, Integer> calls;
     private int initialCallCount;
     private int progress;
-    private int currentTempId;
+    /** Time of the first call, to compute the throughput */
+    private long startTime;
+    /** Don't send new calls while an error is shown. */
+    private boolean paused;
     private boolean kill;
 
     @Override
     public void onCreate(Bundle state) {
         super.onCreate(state);
+        this.calls = new TreeMap<Integer, Integer>();
         if (state != null) {
-            this.callId = state.getInt("callId");
             this.initialCallCount = state.getInt("initialCallCount");
             this.progress = state.getInt("progress");
-            this.currentTempId = state.getInt("currentTempId");
-            if (this.callId != 0) {
-                TrytonCall.update(this.callId, new Handler(this));
+            this.startTime = state.getLong("startTime");
+            int[] callIds = state.getIntArray("callIds");
+            int[] seqs = state.getIntArray("seqs");
+            if (DelayedRequester.current.getSendingCount() > 0) {
+                for (int i = 0; i < callIds.length; i++) {
+                    this.calls.put(callIds[i], seqs[i]);
+                    TrytonCall.update(callIds[i],
+                                      new Handler(new CallHandler(seqs[i])));
+                }
             }
         } else {
             this.initialCallCount = DelayedRequester.current.getQueueSize();
+            this.startTime = SystemClock.elapsedRealtime();
         }
         this.setContentView(R.layout.pending_requests);
         this.remaining = (TextView) this.findViewById(R.id.pending_remaining);
+        this.rate = (TextView) this.findViewById(R.id.pending_rate);
         this.progressBar = (ProgressBar) this.findViewById(R.id.pending_progress);
         this.progressBar.setMax(this.initialCallCount);
         this.update();
@@ -71,10 +97,19 @@ public class PendingRequests extends Activity implements Handler.Callback {
 
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putInt("callId", this.callId);
+        int[] callIds = new int[this.calls.size()];
+        int[] seqs = new int[this.calls.size()];
+        int i = 0;
+        for (int callId : this.calls.keySet()) {
+            callIds[i] = callId;
+            seqs[i] = this.calls.get(callId);
+            i++;
+        }
+        outState.putIntArray("callIds", callIds);
+        outState.putIntArray("seqs", seqs);
         outState.putInt("initialCallCount", this.initialCallCount);
         outState.putInt("progress", this.progress);
-        outState.putInt("currentTempId", this.currentTempId);
+        outState.putLong("startTime", this.startTime);
     }
 
     public void onDestroy() {
@@ -86,57 +121,88 @@ public class PendingRequests extends Activity implements Handler.Callback {
     
     public void onResume() {
         super.onResume();
-        if (this.callId == 0) {
-            this.sendNextCommand();
+        if (!this.paused) {
+            this.sendCommands();
+        }
+    }
+
+    /** Receives the result of the call of a command. */
+    private class CallHandler implements Handler.Callback {
+        private int seq;
+        public CallHandler(int seq) {
+            this.seq = seq;
+        }
+        public boolean handleMessage(Message msg) {
+            return PendingRequests.this.handleCallMessage(this.seq, msg);
         }
     }
 
-    private void next() {
+    private void done(DelayedRequester.Command cmd) {
         this.progress++;
-        DelayedRequester.current.commandDone(this);
+        DelayedRequester.current.commandDone(cmd, this);
         this.update();
-        if (!this.sendNextCommand()) {
-            this.kill = true;
-            this.finish();
-        }
+        this.sendCommands();
     }
 
-    private boolean sendNextCommand() {
+    /** Send the commands that are ready until the window is full,
+     * or quit when everything is sent. */
+    private void sendCommands() {
         DelayedRequester req = DelayedRequester.current;
-        if (req.getQueueSize() > 0) {
-            DelayedRequester.Command cmd = req.getNextCommand();
-            Model data = cmd.getData();
-            Session s = Session.current;
-            switch (cmd.getCmd()) {
-            case DelayedRequester.CMD_CREATE:
-                // Remove the negative id before sending
-                this.currentTempId = (Integer) data.get("id");
-                data.set("id", null);
-                this.callId = TrytonCall.saveData(s.userId, s.cookie,
-                                                  s.prefs, data,
-                                                  null, this,
-                                                  new Handler(this));
-                break;
-            case DelayedRequester.CMD_UPDATE:
-                this.currentTempId = 0;
-                this.callId = TrytonCall.saveData(s.userId, s.cookie,
-                                                  s.prefs, data,
-                                                  null, this,
-                                                  new Handler(this));
+        if (this.calls.isEmpty() && req.getQueueSize() == 0) {
+            this.kill = true;
+            this.finish();
+            return;
+        }
+        if (this.isFinishing()) {
+            // Let the running calls end but don't send new ones
+            return;
+        }
+        while (!this.paused && this.calls.size() < REPLAY_WINDOW) {
+            DelayedRequester.Command cmd = req.getReadyCommand();
+            if (cmd == null) {
                 break;
-            case DelayedRequester.CMD_DELETE:
-                this.currentTempId = 0;
-                int id = (Integer) data.get("id");
-                String className = data.getClassName();
-                this.callId = TrytonCall.deleteData(s.userId, s.cookie,
-                                                    s.prefs, id, className,
-                                                    new Handler(this));
+            }
+            int callId = this.send(cmd);
+            if (callId == -1) {
                 break;
             }
-            return true;
-        } else {
-            return false;
+            req.commandSent(cmd);
+            this.calls.put(callId, cmd.getSeq());
+        }
+    }
+
+    private int send(DelayedRequester.Command cmd) {
+        Model data = cmd.getData();
+        Session s = Session.current;
+        Handler h = new Handler(new CallHandler(cmd.getSeq()));
+        switch (cmd.getCmd()) {
+        case DelayedRequester.CMD_CREATE:
+            // Remove the negative id before sending, the queued one keeps
+            // it for the commands that depend on it
+            Model created = new Model(data.getClassName());
+            created.merge(data);
+            created.set("id", null);
+            // Read it back to store the server values (defaults, function
+            // fields and rec_name) instead of the guessed ones
+            ModelViewTypes views = null;
+            if (cmd.getView() != null) {
+                views = new ModelViewTypes(data.getClassName());
+                views.putView(cmd.getView().getType(), cmd.getView());
+            }
+            return TrytonCall.saveData(s.userId, s.cookie, s.prefs, created,
+                                       null, views, this, h);
+        case DelayedRequester.CMD_UPDATE:
+            // Saved records are not read back, the queued data is already
+            // the one in the local cache
+            return TrytonCall.saveData(s.userId, s.cookie, s.prefs, data,
+                                       null, null, this, h);
+        case DelayedRequester.CMD_DELETE:
+            int id = (Integer) data.get("id");
+            String className = data.getClassName();
+            return TrytonCall.deleteData(s.userId, s.cookie, s.prefs, id,
+                                         className, h);
         }
+        return -1;
     }
 
     @Override
@@ -152,47 +218,75 @@ public class PendingRequests extends Activity implements Handler.Callback {
         int count = DelayedRequester.current.getQueueSize();
         this.remaining.setText(String.format(this.getString(R.string.requester_pending),
                                              count));
+        long time = SystemClock.elapsedRealtime() - this.startTime;
+        if (this.progress > 0 && time > 0) {
+            float perSecond = this.progress * 1000f / time;
+            this.rate.setText(String.format(this.getString(R.string.requester_rate),
+                                            perSecond));
+        }
     }
-    
-    /** Handle TrytonCall feedback. */
-    @SuppressWarnings("unchecked")
-    public boolean handleMessage(Message msg) {
-        // Process message
+
+    /** Get the number of the call for a command. */
+    private Integer getCallId(int seq) {
+        for (int callId : this.calls.keySet()) {
+            if (this.calls.get(callId) == seq) {
+                return callId;
+            }
+        }
+        return null;
+    }
+
+    /** Handle TrytonCall feedback of the call of a command. */
+    private boolean handleCallMessage(int seq, Message msg) {
+        Integer callId = this.getCallId(seq);
+        if (callId != null) {
+            this.calls.remove(callId);
+        }
+        final DelayedRequester.Command cmd = DelayedRequester.current.getCommand(seq);
+        if (cmd == null) {
+            // Not in queue anymore
+            return true;
+        }
         switch (msg.what) {
         case TrytonCall.CALL_SAVE_OK:
-            this.callId = 0;
             Model m = (Model) msg.obj;
-            // Remove temporary id from the database and replace it with
-            // the new value
-            DataCache db = new DataCache(this);
-            Model old = new Model(m.getClassName());
-            old.set("id", this.currentTempId);
-            db.deleteData(old);
-            db.storeData(m.getClassName(), m);
-            db.addOne(m.getClassName());
-            // Check in other create or edit for the temporary item and
-            // replace with the real id
-            int newId = (Integer) m.get("id");
-            DelayedRequester.current.updateTempId(this.currentTempId, newId);
-            // Launch next call
-            this.next();
+            DataCache db = DataCache.get(this);
+            if (cmd.getCmd() == DelayedRequester.CMD_CREATE) {
+                // Remove temporary id from the database and replace it with
+                // the new value
+                int tempId = (Integer) cmd.getData().get("id");
+                Model old = new Model(m.getClassName());
+                old.set("id", tempId);
+                db.deleteData(old);
+                db.storeData(m.getClassName(), m);
+                db.addOne(m.getClassName());
+                // Check in other create or edit for the temporary item and
+                // replace with the real id
+                int newId = (Integer) m.get("id");
+                DelayedRequester.current.updateTempId(tempId, newId, this);
+            } else {
+                db.storeData(m.getClassName(), m);
+            }
+            // Launch next calls
+            this.done(cmd);
             break;
         case TrytonCall.CALL_DELETE_OK:
-            this.callId = 0;
-            this.next();
+            this.done(cmd);
             break;
         case TrytonCall.CALL_SAVE_NOK:
         case TrytonCall.CALL_DELETE_NOK:
-            this.callId = 0;
+            DelayedRequester.current.commandUnsent(cmd);
+            if (this.paused || this.isFinishing()) {
+                // An error is already shown, it will be sent again after
+                break;
+            }
+            this.paused = true;
             Exception e = (Exception) msg.obj;
             final int what = msg.what;
             DialogInterface.OnCancelListener l = new DialogInterface.OnCancelListener() {
                     public void onCancel (DialogInterface dialog) {
-                        DelayedRequester.Command cmd = DelayedRequester.current.getNextCommand();
+                        paused = false;
                         if (what == TrytonCall.CALL_SAVE_NOK) {
-                            // Restore the negative id
-                            cmd.getData().set("id", currentTempId);
-                            currentTempId = 0;
                             // Edit the command
                             FormView.setup(cmd);
                             Session.current.editCommand(cmd);
@@ -201,11 +295,11 @@ public class PendingRequests extends Activity implements Handler.Callback {
                             PendingRequests.this.startActivity(i);
                         } else {
                             // Skip the call
-                            DataCache db = new DataCache(PendingRequests.this);
+                            DataCache db = DataCache.get(PendingRequests.this);
                             db.storeData(cmd.getData().getClassName(),
                                          cmd.getData());
                             db.addOne(cmd.getData().getClassName());
-                            next();
+                            done(cmd);
                         }
                     }
                 };
@@ -224,24 +318,28 @@ public class PendingRequests extends Activity implements Handler.Callback {
             }
             break;
         case TrytonCall.NOT_LOGGED:
-            this.callId = 0;
-            // Restore the negative id
-            if (this.currentTempId != 0) {
-                DelayedRequester.Command cmd = DelayedRequester.current.getNextCommand();
-                Model data = cmd.getData();
-                cmd.getData().set("id", currentTempId);
-                this.currentTempId = 0;
+            DelayedRequester.current.commandUnsent(cmd);
+            if (!this.paused && !this.isFinishing()) {
+                // Ask for relog, the command will be sent again
+                this.paused = true;
+                AlertBuilder.showRelog(this, new Handler(this));
             }
-            // Ask for relog
-            AlertBuilder.showRelog(this, new Handler(this));
             break;
+        }
+        return true;
+    }
+
+    /** Handle relog feedback. */
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
         case AlertBuilder.RELOG_CANCEL:
             this.finish();
             break;
         case AlertBuilder.RELOG_OK:
-            this.sendNextCommand();
+            this.paused = false;
+            this.sendCommands();
             break;
         }
         return true;
     }
-}
\ No newline at end of file
+}
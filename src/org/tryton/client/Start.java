@@ -234,7 +234,7 @@ public class Start extends Activity implements Handler.Callback {
             Intent i = new Intent(this, org.tryton.client.Menu.class);
             this.startActivity(i);
             // Check if data cache is still valid (maybe host changed)
-            DataCache db = new DataCache(this);
+            DataCache db = DataCache.get(this);
             if (!db.checkDatabase(Configure.getDatabaseCode(this))) {
                 db.clear();
             }
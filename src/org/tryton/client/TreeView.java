@@ -28,6 +28,7 @@ import android.os.Message;
 import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ExpandableListView;
 import android.widget.ImageButton;
@@ -40,6 +41,7 @@ import java.util.List;
 
 import org.tryton.client.data.DataCache;
 import org.tryton.client.data.DataLoader;
+import org.tryton.client.data.DataWindow;
 import org.tryton.client.data.ViewCache;
 import org.tryton.client.models.MenuEntry;
 import org.tryton.client.models.Model;
@@ -49,17 +51,21 @@ import org.tryton.client.models.RelField;
 import org.tryton.client.tools.AlertBuilder;
 import org.tryton.client.tools.TrytonCall;
 import org.tryton.client.data.Session;
+import org.tryton.client.views.TreeCells;
 import org.tryton.client.views.TreeFullAdapter;
 import org.tryton.client.views.TreeSummaryAdapter;
 import org.tryton.client.views.TreeSummaryItem;
 
 /** Main tree view. Used for top level listing. Other trees are shown with
  * PickOne or ToManyEditor. 
+ * The whole list is scrollable, records are loaded by DataWindow
+ * while scrolling.
  * TreeView must be unique in order for the dirty check to work. */
 public class TreeView extends Activity
     implements Handler.Callback, ListView.OnItemClickListener,
                ExpandableListView.OnChildClickListener,
-               DialogInterface.OnCancelListener {
+               DialogInterface.OnCancelListener, DataWindow.Listener,
+               AbsListView.OnScrollListener {
 
     /** Use a static initializer to pass data to the activity on start.
         Set the menu that triggers the view to load the views. */
@@ -81,7 +87,9 @@ public class TreeView extends Activity
     private int totalDataCount = -1;
     private int dataOffset;
     private List<RelField> relFields;
-    private List<Model> data;
+    private DataWindow data;
+    private TreeFullAdapter adapt;
+    private TreeSummaryAdapter sumadapt;
     private int mode;
     private int callCountId; // Id for parallel count call
     private int callDataId; // Id for the other call chain
@@ -115,13 +123,8 @@ public class TreeView extends Activity
                 this.showLoadingDialog(this.currentLoadingMsg);
             }
             this.totalDataCount = state.getInt("totalDataCount");
-            if (state.containsKey("data_count")) {
-                int count = state.getInt("data_count");
-                this.data = new ArrayList<Model>();
-                for (int i = 0; i < count; i++) {
-                    this.data.add((Model)state.getSerializable("data_" + i));
-                }
-            }
+            // Records are loaded again from cache, restore the position
+            this.dataOffset = state.getInt("dataOffset");
             if (state.containsKey("rel_count")) {
                 int count = state.getInt("rel_count");
                 this.relFields = new ArrayList<RelField>();
@@ -139,8 +142,10 @@ public class TreeView extends Activity
         this.setContentView(R.layout.tree);
         this.tree = (ListView) this.findViewById(R.id.tree_list);
         this.tree.setOnItemClickListener(this);
+        this.tree.setOnScrollListener(this);
         this.sumtree = (ExpandableListView) this.findViewById(R.id.tree_sum_list);
         this.sumtree.setOnChildClickListener(this);
+        this.sumtree.setOnScrollListener(this);
         this.pagination = (TextView) this.findViewById(R.id.tree_pagination);
         this.nextPage = (ImageButton) this.findViewById(R.id.tree_next_btn);
         this.previousPage = (ImageButton) this.findViewById(R.id.tree_prev_btn);
@@ -163,12 +168,7 @@ public class TreeView extends Activity
         outState.putSerializable("viewTypes", this.viewTypes);
         outState.putInt("totalDataCount", this.totalDataCount);
         outState.putBoolean("refreshing", this.refreshing);
-        if (this.data != null) {
-            outState.putSerializable("data_count", this.data.size());
-            for (int i = 0; i < this.data.size(); i++) {
-                outState.putSerializable("data_" + i, this.data.get(i));
-            }
-        }
+        outState.putInt("dataOffset", this.dataOffset);
         if (this.relFields != null) {
             outState.putSerializable("rel_count", this.relFields.size());
             for (int i = 0; i < this.relFields.size(); i++) {
@@ -184,52 +184,93 @@ public class TreeView extends Activity
     public void onDestroy() {
         super.onDestroy();
         this.hideLoadingDialog();
+        if (this.data != null) {
+            this.data.cancel();
+        }
     }
 
     public static void setDirty() {
         dirty = true;
     }
 
-    /** Update the display list and header with loaded data.
-     * A call to hideLoadingDialog should be done around it as it means
-     * the data are all there. */
+    /** Update the display list and header with the data window. */
     private void updateList() {
-        // Update paging display
+        // Update data
+        ModelView view = this.viewTypes.getView("tree");
+        switch (this.mode) {
+        case MODE_EXTENDED:
+            this.adapt = new TreeFullAdapter(view, this.data);
+            this.sumadapt = null;
+            this.tree.setAdapter(this.adapt);
+            this.tree.setSelection(this.dataOffset);
+            this.sumtree.setVisibility(View.GONE);
+            this.tree.setVisibility(View.VISIBLE);
+            break;
+        case MODE_SUMMARY:
+            this.sumadapt = new TreeSummaryAdapter(view, this.data);
+            this.adapt = null;
+            this.sumtree.setAdapter(this.sumadapt);
+            this.sumtree.setSelectedGroup(this.dataOffset);
+            this.sumtree.setVisibility(View.VISIBLE);
+            this.tree.setVisibility(View.GONE);
+            break;
+        }
+        this.updatePagination(this.dataOffset, 0);
+    }
+
+    /** Update paging display with the visible records. */
+    private void updatePagination(int first, int visibleCount) {
         String format = this.getString(R.string.tree_pagination);
         int start = 0;
-        if (this.data.size() > 0) {
-            start = this.dataOffset + 1;
+        if (this.totalDataCount > 0) {
+            start = first + 1;
         }
-        this.pagination.setText(String.format(format,
-                                              start,
-                                              this.dataOffset + this.data.size(),
+        int end = Math.min(first + Math.max(visibleCount, 1),
+                           this.totalDataCount);
+        this.pagination.setText(String.format(format, start, end,
                                               this.totalDataCount));
-        if (this.dataOffset == 0) {
+        if (first == 0) {
             this.previousPage.setVisibility(View.INVISIBLE);
         } else {
             this.previousPage.setVisibility(View.VISIBLE);
         }
-        if (this.dataOffset + this.data.size() < this.totalDataCount) {
+        if (end < this.totalDataCount) {
             this.nextPage.setVisibility(View.VISIBLE);
         } else {
             this.nextPage.setVisibility(View.INVISIBLE);
         }
-        // Update data
-        ModelView view = this.viewTypes.getView("tree");
+    }
+
+    public void onScroll(AbsListView view, int firstVisibleItem,
+                         int visibleItemCount, int totalItemCount) {
+        if (this.data == null || view.getVisibility() != View.VISIBLE
+            || visibleItemCount == 0) {
+            return;
+        }
+        int first = firstVisibleItem;
+        int last = firstVisibleItem + visibleItemCount - 1;
+        if (view == this.sumtree) {
+            // Positions include the expanded children, use groups
+            long packed = this.sumtree.getExpandableListPosition(first);
+            first = ExpandableListView.getPackedPositionGroup(packed);
+            packed = this.sumtree.getExpandableListPosition(last);
+            last = ExpandableListView.getPackedPositionGroup(packed);
+        }
+        this.dataOffset = Math.max(first, 0);
+        this.updatePagination(this.dataOffset, last - first + 1);
+    }
+
+    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+
+    /** Move the list to a position. */
+    private void scrollTo(int position) {
+        position = Math.max(0, Math.min(position, this.totalDataCount - 1));
         switch (this.mode) {
         case MODE_EXTENDED:
-            TreeFullAdapter adapt = new TreeFullAdapter(view,
-                                                        this.data);
-            this.tree.setAdapter(adapt);
-            this.sumtree.setVisibility(View.GONE);
-            this.tree.setVisibility(View.VISIBLE);
+            this.tree.setSelection(position);
             break;
         case MODE_SUMMARY:
-            TreeSummaryAdapter sumadapt = new TreeSummaryAdapter(view,
-                                                                 this.data);
-            this.sumtree.setAdapter(sumadapt);
-            this.sumtree.setVisibility(View.VISIBLE);
-            this.tree.setVisibility(View.GONE);
+            this.sumtree.setSelectedGroup(position);
             break;
         }
     }
@@ -237,35 +278,30 @@ public class TreeView extends Activity
     public void prevPage(View button) {
         switch (this.mode) {
         case MODE_EXTENDED:
-             this.dataOffset -= PAGING_EXTENDED;
+            this.scrollTo(this.dataOffset - PAGING_EXTENDED);
             break;
         case MODE_SUMMARY:
-            this.dataOffset -= PAGING_SUMMARY;
+            this.scrollTo(this.dataOffset - PAGING_SUMMARY);
         }
-        if (this.dataOffset < 0) {
-            this.dataOffset = 0;
-        }
-        this.loadData(false);
     }
 
     public void nextPage(View button) {
-        int maxOffset = this.totalDataCount;
         switch (this.mode) {
         case MODE_EXTENDED:
-            this.dataOffset += PAGING_EXTENDED;
-            maxOffset -= PAGING_EXTENDED;
+            this.scrollTo(this.dataOffset + PAGING_EXTENDED);
             break;
         case MODE_SUMMARY:
-            this.dataOffset += PAGING_SUMMARY;
-            maxOffset -= PAGING_SUMMARY;
+            this.scrollTo(this.dataOffset + PAGING_SUMMARY);
         }
-        this.dataOffset = Math.min(this.dataOffset, maxOffset);
-        this.loadData(false);
     }
 
     public void onItemClick(AdapterView<?> adapt, View v,
                             int position, long id) {
         Model clickedData = this.data.get(position);
+        if (clickedData == null) {
+            // Not loaded yet
+            return;
+        }
         ModelView formView = this.viewTypes.getView("form");
         if (formView != null) {
             FormView.setup(formView);
@@ -279,6 +315,10 @@ public class TreeView extends Activity
     public boolean onChildClick(ExpandableListView parent, View v, int groupPos,
                                 int childPos, long id) {
         Model clickedData = this.data.get(groupPos);
+        if (clickedData == null) {
+            // Not loaded yet
+            return true;
+        }
         ModelView formView = this.viewTypes.getView("form");
         if (formView != null) {
             FormView.setup(formView);
@@ -314,6 +354,9 @@ public class TreeView extends Activity
     }
 
     public void onCancel(DialogInterface dialog) {
+        if (this.data != null) {
+            this.data.cancel();
+        }
         DataLoader.cancel(this.callCountId);
         DataLoader.cancel(this.callDataId);
         this.callDataId = 0;
@@ -360,31 +403,50 @@ public class TreeView extends Activity
         }
     }
 
-    /** Load data. Requires that views and meta are loaded. */
+    /** Set a new data window. Requires that views and meta are loaded.
+     * The records are loaded when shown. */
     private void loadData(boolean refresh) {
-        if (this.callDataId != 0) {
-            // A call is already pending, wait for its result
-            return;
-        }
-        int count = 10;
-        switch (this.mode) {
-        case MODE_EXTENDED:
-            count = PAGING_EXTENDED;
-            break;
-        case MODE_SUMMARY:
-            count = PAGING_SUMMARY;
-            break;
+        if (this.data != null) {
+            this.data.cancel();
         }
-        int expectedSize = Math.min(this.totalDataCount - this.dataOffset,
-                                    count);
         String className = this.viewTypes.getModelName();
-        this.showLoadingDialog(LOADING_DATA);
         ModelView view = this.viewTypes.getView("tree");
-        this.callDataId = DataLoader.loadData(this, className, this.dataOffset,
-                                              count, expectedSize,
-                                              this.relFields, view,
-                                              new Handler(this),
-                                              refresh);
+        this.data = new DataWindow(this, className, this.totalDataCount,
+                                   this.relFields, view, refresh, this);
+        this.data.setFormatter(new TreeCells(this, view));
+        this.refreshing = false;
+        dirty = false;
+        this.dataOffset = Math.max(0, Math.min(this.dataOffset,
+                                               this.totalDataCount - 1));
+        if (this.totalDataCount > 0) {
+            // Wait for the first records to show up
+            this.showLoadingDialog(LOADING_DATA);
+            this.data.get(this.dataOffset);
+        } else {
+            this.hideLoadingDialog();
+        }
+        this.updateList();
+    }
+
+    public void onWindowChanged(DataWindow window) {
+        if (window != this.data) {
+            return;
+        }
+        if (this.callCountId == 0 && this.callDataId == 0) {
+            this.hideLoadingDialog();
+        }
+        if (this.adapt != null) {
+            this.adapt.notifyDataSetChanged();
+        }
+        if (this.sumadapt != null) {
+            this.sumadapt.notifyDataSetChanged();
+        }
+    }
+
+    public void onWindowError(DataWindow window, Message msg) {
+        if (window == this.data) {
+            this.handleMessage(msg);
+        }
     }
 
     /** Handle TrytonCall feedback. */
@@ -463,16 +525,6 @@ public class TreeView extends Activity
                 this.loadData(this.refreshing);
             }
             break;
-        case DataLoader.DATA_OK:
-            this.callDataId = 0;
-            this.refreshing = false;
-            ret = (Object[]) msg.obj;
-            List<Model> data = (List<Model>) ret[1];
-            this.data = data;
-            dirty = false;
-            this.hideLoadingDialog();
-            this.updateList();
-            break;
         case TrytonCall.NOT_LOGGED:
             this.callDataId = 0;
             this.callCountId = 0;
@@ -557,7 +609,9 @@ public class TreeView extends Activity
             } else {
                 this.mode = MODE_SUMMARY;
             }
-            this.loadData(false);
+            if (this.data != null) {
+                this.updateList();
+            }
             break;
         case MENU_NEW_ID:
             Session.current.editNewModel(this.viewTypes.getModelName());
@@ -0,0 +1,40 @@
+/*
+    Tryton Android
+    Copyright (C) 2012 SARL SCOP Scil (contact@scil.coop)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tryton.client;
+
+import android.app.Application;
+
+import org.tryton.client.data.DataCache;
+
+/** The application itself. It holds resources shared by all activities
+ * for the lifetime of the process. */
+public class TrytonApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Keep the local cache open while the application lives
+        DataCache.open(this);
+    }
+
+    @Override
+    public void onTerminate() {
+        super.onTerminate();
+        DataCache.release();
+    }
+}
@@ -22,19 +22,26 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
 import org.tryton.client.models.MenuEntry;
 import org.tryton.client.models.Model;
+import org.tryton.client.models.ModelCodec;
 import org.tryton.client.models.ModelView;
 import org.tryton.client.models.ModelViewTypes;
 import org.tryton.client.models.RelField;
 import org.tryton.client.tools.ArchParser;
+import org.tryton.client.tools.IdMap;
 
 /** This class assumes the cache of data and is the only source
     for the application itself. When calling for data TrytonCall fills
@@ -45,7 +52,7 @@ public class DataCache extends SQLiteOpenHelper {
     private static final int CACHE_LIFETIME = 36000000; // 10 hours
 
     /** The database version to detect and do updates */
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 4;
 
     private static final String DATABASE_TABLE = "database";
     private static final String MODEL_TABLE = "models";
@@ -55,11 +62,79 @@ public class DataCache extends SQLiteOpenHelper {
     private static final String VIEW_TABLE = "view";
     private static final String SUBVIEWS_TABLE = "subviews";
     private static final String DEFAULTVIEWS_TABLE = "defaultviews";
+    private static final String FIELDNAMES_TABLE = "fieldnames";
+    private static final String SYNC_TABLE = "sync";
 
-    public DataCache (Context ctx) {
+    /** The shared instance, see get(). */
+    private static DataCache shared;
+    /** Number of open() calls not yet released. */
+    private static int refCount;
+
+    /** The connection shared by all calls, opened on first use. */
+    private SQLiteDatabase db;
+    /** Field names dictionaries of stored records by class name. */
+    private Map<String, ModelCodec.Dictionary> dictionaries =
+        new HashMap<String, ModelCodec.Dictionary>();
+    /** Rowid of the record before an offset by class name, to read the
+     * pages of getData without skipping all the previous records. */
+    private Map<String, Map<Integer, Long>> pageMarks =
+        new HashMap<String, Map<Integer, Long>>();
+    /** Views recently read, by id and class name. They are not modified
+     * once built and are shared. */
+    private Map<String, ModelView> views =
+        new LinkedHashMap<String, ModelView>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, ModelView> e) {
+                return this.size() > VIEWS_CACHE_SIZE;
+            }
+        };
+    private static final int VIEWS_CACHE_SIZE = 32;
+
+    private DataCache (Context ctx) {
         super(ctx, "Tryton", null, DB_VERSION);
     }
 
+    /** Get the process-wide cache. The connection is kept open between
+     * calls instead of being reopened for each one. */
+    public static synchronized DataCache get(Context ctx) {
+        if (shared == null) {
+            shared = new DataCache(ctx.getApplicationContext());
+        }
+        return shared;
+    }
+
+    /** Hold a reference on the shared cache. The connection is kept open
+     * until the matching release(). */
+    public static synchronized DataCache open(Context ctx) {
+        refCount++;
+        return get(ctx);
+    }
+
+    /** Release a reference got by open(). The connection is closed when
+     * the last one is released and will be reopened on next use. */
+    public static synchronized void release() {
+        if (refCount > 0) {
+            refCount--;
+        }
+        if (refCount == 0 && shared != null) {
+            shared.close();
+        }
+    }
+
+    /** Get the open connection, opening it if required. SQLiteDatabase
+     * is locked internally so the same connection is used by all threads. */
+    private synchronized SQLiteDatabase getDatabase() {
+        if (this.db == null || !this.db.isOpen()) {
+            this.db = this.getWritableDatabase();
+        }
+        return this.db;
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        this.db = null;
+    }
+
     ////////////////////////
     // General operations //
     ////////////////////////
@@ -114,57 +189,214 @@ public class DataCache extends SQLiteOpenHelper {
                    + "viewId INTEGER NOT NULL, "
                    + "writeTime INTEGER, "
                    + "PRIMARY KEY (className, type))");
+        this.createFieldNames(db);
+        this.createSync(db);
+        this.createIndexes(db);
+    }
+
+    private void createFieldNames(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + FIELDNAMES_TABLE + " ("
+                   + "className TEXT NOT NULL, "
+                   + "position INTEGER NOT NULL, "
+                   + "name TEXT NOT NULL, "
+                   + "PRIMARY KEY (className, position))");
+    }
+
+    /** Indexes for the queries by class name. The primary key of
+     * MODEL_TABLE starts with id and can't be used for them. */
+    private void createIndexes(SQLiteDatabase db) {
+        // Entries are sorted by rowid for each class name,
+        // which is the order of getData
+        db.execSQL("CREATE INDEX models_className ON " + MODEL_TABLE
+                   + " (className)");
+        db.execSQL("CREATE INDEX relationnals_type ON " + REL_TABLE
+                   + " (className, type, writeTime)");
+    }
+
+    private void createSync(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SYNC_TABLE + " ("
+                   + "className TEXT PRIMARY KEY, "
+                   + "stamp TEXT NOT NULL, "       // Last server change
+                   + "writeTime INTEGER)");
     }
 
     /** Upgrade procedure from oldVersion (the one installed)
         to newVersion (DB_VERSION) */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Nothing to do, there is only one version
-        return;
+        if (oldVersion < 2) {
+            // Records and views were serialized, convert them to ModelCodec
+            this.createFieldNames(db);
+            this.upgradeBlobs(db, MODEL_TABLE, true);
+            this.upgradeBlobs(db, VIEW_TABLE, false);
+        }
+        if (oldVersion < 3) {
+            this.createSync(db);
+        }
+        if (oldVersion < 4) {
+            this.createIndexes(db);
+        }
+    }
+
+    /** Rewrite all the blobs of a table in the ModelCodec format. */
+    private void upgradeBlobs(SQLiteDatabase db, String table,
+                              boolean models) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + table
+                                                     + " SET data = ? "
+                                                     + "WHERE rowid = ?");
+        List<ModelCodec.Dictionary> used =
+            new ArrayList<ModelCodec.Dictionary>();
+        long lastRow = -1;
+        int count = 0;
+        boolean more = true;
+        while (more) {
+            // Read by pages to keep the cursor small
+            Cursor c = db.query(table,
+                                new String[]{"rowid", "className", "data"},
+                                "rowid > ? AND data NOT NULL",
+                                new String[]{String.valueOf(lastRow)},
+                                null, null, "rowid", "200");
+            more = c.getCount() > 0;
+            while (c.moveToNext()) {
+                lastRow = c.getLong(0);
+                byte[] data = c.getBlob(2);
+                if (ModelCodec.isEncoded(data)) {
+                    continue;
+                }
+                try {
+                    if (models) {
+                        ModelCodec.Dictionary dict =
+                            this.getDictionary(db, c.getString(1));
+                        if (!used.contains(dict)) {
+                            used.add(dict);
+                        }
+                        Model m = Model.fromByteArray(data);
+                        data = ModelCodec.encode(m, dict);
+                    } else {
+                        data = ModelView.fromByteArray(data).toByteArray();
+                    }
+                    update.bindBlob(1, data);
+                    update.bindLong(2, lastRow);
+                    update.execute();
+                    count++;
+                } catch (Exception e) {
+                    // Unreadable, drop it and it will be fetched again
+                    Log.w("Tryton", "Unable to convert stored data", e);
+                    db.delete(table, "rowid = ?",
+                              new String[]{String.valueOf(lastRow)});
+                }
+            }
+            c.close();
+        }
+        update.close();
+        for (ModelCodec.Dictionary dict : used) {
+            this.saveDictionary(db, dict);
+        }
+        synchronized (this.dictionaries) {
+            // Reload them from the upgraded database on next use
+            this.dictionaries.clear();
+        }
+        Log.i("Tryton", "Converted " + count + " " + table + " entries");
+    }
+
+    /** Get the field names dictionary used to store records
+     * of a class name. */
+    private ModelCodec.Dictionary getDictionary(SQLiteDatabase db,
+                                                String className) {
+        synchronized (this.dictionaries) {
+            ModelCodec.Dictionary dict = this.dictionaries.get(className);
+            if (dict == null) {
+                List<String> names = new ArrayList<String>();
+                Cursor c = db.query(FIELDNAMES_TABLE, new String[]{"name"},
+                                    "className = ?", new String[]{className},
+                                    null, null, "position", null);
+                while (c.moveToNext()) {
+                    names.add(c.getString(0));
+                }
+                c.close();
+                dict = new ModelCodec.Dictionary(className, names);
+                this.dictionaries.put(className, dict);
+            }
+            return dict;
+        }
+    }
+
+    /** Write the names added to a dictionary. Must be called in the same
+     * transaction as the records using them. Returns the number of names
+     * to give to Dictionary.setSaved once the transaction succeeded. */
+    private int saveDictionary(SQLiteDatabase db,
+                               ModelCodec.Dictionary dict) {
+        int position = dict.getSavedCount();
+        List<String> names = dict.getUnsavedNames();
+        if (names.size() == 0) {
+            return position;
+        }
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO "
+                                                     + FIELDNAMES_TABLE
+                                                     + " (className, "
+                                                     + "position, name) "
+                                                     + "VALUES (?, ?, ?)");
+        for (String name : names) {
+            insert.bindString(1, dict.getClassName());
+            insert.bindLong(2, position);
+            insert.bindString(3, name);
+            insert.execute();
+            position++;
+        }
+        insert.close();
+        return position;
+    }
+
+    /** Read a record stored in MODEL_TABLE. */
+    private Model decodeModel(SQLiteDatabase db, String className,
+                              byte[] data) throws IOException {
+        if (ModelCodec.usesDictionary(data)) {
+            return ModelCodec.decode(data, this.getDictionary(db, className));
+        }
+        return Model.fromByteArray(data);
     }
 
     /** Check if the records present in database belongs to the given
      * host and database. */
     public boolean checkDatabase(String databaseCode) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         Cursor c = db.query(DATABASE_TABLE, new String[]{"databaseCode"},
                             null, null, null,
                             null, null, "1");
         if (c.moveToFirst()) {
             String dbHost = c.getString(0);
             c.close();
-            db.close();
             return dbHost.equals(databaseCode);
         } else {
             // No entry, database is useable
             c.close();
-            db.close();
             return true;
         }
     }
 
     /** Remove all entry from the database. */
     public void clear() {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         db.delete(MODEL_TABLE, null, null);
         db.delete(DATABASE_TABLE, null, null);
         db.delete(REL_TABLE, null, null);
         db.delete(COUNT_TABLE, null, null);
-        db.close();
+        db.delete(SYNC_TABLE, null, null);
+        synchronized (this.pageMarks) {
+            this.pageMarks.clear();
+        }
     }
 
     /** Bind the database to a database and host.
      * Should be called after a check and clear to
      * prevent from mixing data from multiple hosts. */
     public void setHost(String databaseCode) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         ContentValues v = new ContentValues();
         v.put("databaseCode", databaseCode);
         if (db.update(DATABASE_TABLE, v , null, null) == 0) {
             db.insert(DATABASE_TABLE, null, v);
         }
-        db.close();
     }
 
     /////////////////////
@@ -173,7 +405,14 @@ public class DataCache extends SQLiteOpenHelper {
 
     private Set<Integer> storedIds;
 
+    private static String viewKey(int id, String className) {
+        return id + "/" + className;
+    }
+
     private void storeView(SQLiteDatabase db, ModelView v, long writeTime) {
+        synchronized (this.views) {
+            this.views.remove(viewKey(v.getId(), v.getModelName()));
+        }
         // Insert view
         ContentValues cv = new ContentValues();
         cv.put("id", v.getId());
@@ -214,10 +453,9 @@ public class DataCache extends SQLiteOpenHelper {
     }
 
     public void storeView(ModelView v) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         long time = System.currentTimeMillis();
         storeView(db, v, time);
-        db.close();
     }
     
     private void storeSubview(SQLiteDatabase db, int parentId, String fieldName,
@@ -249,7 +487,7 @@ public class DataCache extends SQLiteOpenHelper {
     }
 
     public void storeViewTypes(MenuEntry origin, ModelViewTypes viewTypes) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         long time = System.currentTimeMillis();
         ContentValues v = new ContentValues();
         v.put("menuId", origin.getId());
@@ -273,13 +511,17 @@ public class DataCache extends SQLiteOpenHelper {
                 storeView(db, view, time);
             }
         }
-        db.close();
     }
 
-    private ModelView buildView(byte[] data) {
+    /** Read a stored view. Views stored with their structure are ready,
+     * older ones are built and stored again with it. */
+    private ModelView buildView(SQLiteDatabase db, long rowId, byte[] data) {
         ModelView view = null;
         try {
             view = ModelView.fromByteArray(data);
+            if (view.isBuilt()) {
+                return view;
+            }
             // Build
             ArchParser p = new ArchParser(view);
             p.buildTree();
@@ -294,12 +536,43 @@ public class DataCache extends SQLiteOpenHelper {
                     }
                 }
             }
+            // Keep the structure for next time
+            ContentValues cv = new ContentValues();
+            cv.put("data", view.toByteArray());
+            db.update(VIEW_TABLE, cv, "rowid = ?",
+                      new String[]{String.valueOf(rowId)});
         } catch (IOException e) {
             Log.e("Tryton", "Unable to read stored data", e);
         }
         return view;
     }
 
+    /** Get a view from the in-memory cache or read it with the query,
+     * which must select rowid and data. */
+    private ModelView loadView(SQLiteDatabase db, int id, String className,
+                               String selection, String[] args) {
+        String key = viewKey(id, className);
+        synchronized (this.views) {
+            ModelView v = this.views.get(key);
+            if (v != null) {
+                return v;
+            }
+        }
+        Cursor c = db.query(VIEW_TABLE, new String[]{"rowid", "data"},
+                            selection, args, null, null, null, null);
+        ModelView v = null;
+        if (c.moveToNext()) {
+            v = buildView(db, c.getLong(0), c.getBlob(1));
+        }
+        c.close();
+        if (v != null) {
+            synchronized (this.views) {
+                this.views.put(key, v);
+            }
+        }
+        return v;
+    }
+
     private ModelView loadDefaultView(SQLiteDatabase db,
                                       String className, String type) {
         Cursor idC = db.query(DEFAULTVIEWS_TABLE, new String[]{"viewId"},
@@ -312,53 +585,32 @@ public class DataCache extends SQLiteOpenHelper {
         }
         idC.close();
         if (id != 0) {
-            Cursor c = null;
-            c = db.query(VIEW_TABLE, new String[]{"data"},
-                         "id = ?", new String[]{String.valueOf(id)},
-                         null, null, null, null);
-            ModelView v = null;
-            if (c.moveToNext()) {
-                byte[] data = c.getBlob(0);
-                v = buildView(data);
-            }
-            c.close();
-            return v;
+            return loadView(db, id, className, "id = ?",
+                            new String[]{String.valueOf(id)});
         }
         return null;
     }
 
     public ModelView loadDefaultView(String className, String type) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         ModelView view = loadDefaultView(db, className, type);
-        db.close();
         return view;
     }
 
     private ModelView loadView(SQLiteDatabase db, int id, String className) {
-        Cursor c = null;
-        c = db.query(VIEW_TABLE, new String[]{"data"},
-                     "id = ? and className = ?",
-                     new String[]{String.valueOf(id), className},
-                     null, null, null, null);
-        ModelView v = null;
-        if (c.moveToNext()) {
-            byte[] data = c.getBlob(0);
-            v = buildView(data);
-        }
-        c.close();
-        return v;
+        return loadView(db, id, className, "id = ? and className = ?",
+                        new String[]{String.valueOf(id), className});
     }
 
     /** Load a given view. If id is 0 use loadDefaultView instead. */
     public ModelView loadView(int viewId, String className) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         ModelView v = loadView(db, viewId, className);
-        db.close();
         return v;
     }
 
     public ModelViewTypes loadViews(int menuId) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         Cursor c = db.query(MENUVIEWS_TABLE,
                             new String[]{"type", "viewId", "className"},
                             "menuId = ?",
@@ -378,12 +630,11 @@ public class DataCache extends SQLiteOpenHelper {
             }
         }
         c.close();
-        db.close();
         return ret;
     }
 
     public ModelViewTypes loadSubviews(ModelView parent, String fieldName) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         Cursor c = db.query(SUBVIEWS_TABLE,
                             new String[]{"type", "subviewId"},
                             "viewId = ?",
@@ -407,7 +658,6 @@ public class DataCache extends SQLiteOpenHelper {
             viewTypes.putView(type, subview);
         }
         c.close();
-        db.close();
         return viewTypes;
     }
 
@@ -416,18 +666,16 @@ public class DataCache extends SQLiteOpenHelper {
     /////////////////////
 
     public int getDataCount(String className) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         Cursor c = db.query(COUNT_TABLE, new String[]{"count"},
                             "className = ?", new String[]{className},
                             null, null, null, "1");
         if (c.moveToNext()) {
             int count = c.getInt(0);
             c.close();
-            db.close();
             return count;
         } else {
             c.close();
-            db.close();
             return -1;
         }
     }
@@ -438,7 +686,7 @@ public class DataCache extends SQLiteOpenHelper {
         if (count == -1) {
             return false;
         }
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         Cursor c;
         if (!full) {
             c = db.query(MODEL_TABLE, new String[]{"count(id)"},
@@ -452,17 +700,15 @@ public class DataCache extends SQLiteOpenHelper {
         if (c.moveToNext()) {
             int loadedCount = c.getInt(0);
             c.close();
-            db.close();
             return loadedCount == count;
         } else {
             c.close();
-            db.close();
             return false;
         }
     }
 
     public void setDataCount(String className, int count) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         ContentValues v = new ContentValues();
         v.put("className", className);
         v.put("count", count);
@@ -471,12 +717,11 @@ public class DataCache extends SQLiteOpenHelper {
                       new String[]{className}) == 0) {
             db.insert(COUNT_TABLE, null, v);
         }
-        db.close();
     }
 
     /** Set datacount from records, assuming className is fully stored. */
     public void updateDataCount(String className) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         Cursor c = db.query(MODEL_TABLE, new String[]{"count(id)"},
                             "className = ?", new String[]{className},
                             null, null, null, null);
@@ -485,13 +730,12 @@ public class DataCache extends SQLiteOpenHelper {
             count = c.getInt(0);
         }
         c.close();
-        db.close();
         this.setDataCount(className, count);
     }
 
     /** Add one to the count of data (when creating a new record) */
     public void addOne(String className) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         Cursor c = db.query(COUNT_TABLE, new String[]{"count"},
                             "className = ?", new String[]{className},
                             null, null, null, "1");
@@ -508,13 +752,134 @@ public class DataCache extends SQLiteOpenHelper {
             db.insert(COUNT_TABLE, null, v);
             c.close();
         }
-        db.close();
+    }
+
+    /** Forget the page positions of a class name when records are
+     * added or removed. Updates don't change the rowid of records
+     * and keep them. */
+    private void resetPages(String className) {
+        synchronized (this.pageMarks) {
+            this.pageMarks.remove(className);
+        }
+    }
+
+    /** Get the date of the last server change included in the stored
+     * records of a model, or null if it was never synced. */
+    public String getSyncStamp(String className) {
+        SQLiteDatabase db = this.getDatabase();
+        Cursor c = db.query(SYNC_TABLE, new String[]{"stamp"},
+                            "className = ?", new String[]{className},
+                            null, null, null, "1");
+        String stamp = null;
+        if (c.moveToNext()) {
+            stamp = c.getString(0);
+        }
+        c.close();
+        return stamp;
+    }
+
+    /** Set the sync stamp of a model once all records were stored.
+     * A null stamp removes it. */
+    public void setSyncStamp(String className, String stamp) {
+        SQLiteDatabase db = this.getDatabase();
+        if (stamp == null) {
+            db.delete(SYNC_TABLE, "className = ?", new String[]{className});
+            return;
+        }
+        ContentValues v = new ContentValues();
+        v.put("className", className);
+        v.put("stamp", stamp);
+        v.put("writeTime", System.currentTimeMillis());
+        if (db.update(SYNC_TABLE, v, "className = ?",
+                      new String[]{className}) == 0) {
+            db.insert(SYNC_TABLE, null, v);
+        }
+    }
+
+    /** Get the ids of the full records stored for a model. */
+    public List<Integer> getDataIds(String className) {
+        SQLiteDatabase db = this.getDatabase();
+        Cursor c = db.query(MODEL_TABLE, new String[]{"id"},
+                            "className = ? AND data NOT NULL",
+                            new String[]{className},
+                            null, null, null, null);
+        List<Integer> ids = new ArrayList<Integer>(c.getCount());
+        while (c.moveToNext()) {
+            ids.add(c.getInt(0));
+        }
+        c.close();
+        return ids;
+    }
+
+    private void deleteIds(SQLiteDatabase db, String className,
+                           List<Integer> ids) {
+        if (ids.size() == 0) {
+            return;
+        }
+        this.resetPages(className);
+        SQLiteStatement delete = db.compileStatement("DELETE FROM "
+                                                     + MODEL_TABLE
+                                                     + " WHERE id = ?"
+                                                     + " AND className = ?");
+        for (int id : ids) {
+            delete.bindLong(1, id);
+            delete.bindString(2, className);
+            delete.execute();
+        }
+        delete.close();
+    }
+
+    /** Remove the stored records of a model that are not in ids,
+     * after all of them were loaded again. */
+    public void retainData(String className, IdMap<?> ids) {
+        List<Integer> removed = new ArrayList<Integer>();
+        for (int id : this.getDataIds(className)) {
+            if (!ids.containsKey(id)) {
+                removed.add(id);
+            }
+        }
+        if (removed.size() == 0) {
+            return;
+        }
+        SQLiteDatabase db = this.getDatabase();
+        db.beginTransaction();
+        try {
+            this.deleteIds(db, className, removed);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.d("Tryton", "Removed " + removed.size() + " " + className
+              + " records deleted on the server");
+    }
+
+    /** Merge the changes got from TrytonCall.syncData. The untouched
+     * records are up to date with the server and are kept as fresh. */
+    public void applyDelta(String className, List<Model> changed,
+                           List<Integer> deleted, int count, String stamp) {
+        // Stored apart, storeData marks its field names as saved once
+        // committed. The stamp is set last, a failure only syncs again.
+        this.storeData(className, changed);
+        SQLiteDatabase db = this.getDatabase();
+        db.beginTransaction();
+        try {
+            this.deleteIds(db, className, deleted);
+            ContentValues v = new ContentValues();
+            v.put("writeTime", System.currentTimeMillis());
+            db.update(MODEL_TABLE, v, "className = ? AND data NOT NULL",
+                      new String[]{className});
+            this.setDataCount(className, count);
+            this.setSyncStamp(className, stamp);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /** Store relationnal fields. Use null if there is no rel field on the
         model. */
     public void storeRelFields(String className, List<RelField> relations) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         long time = System.currentTimeMillis();
         if (relations.size() == 0) {
             db.delete(REL_TABLE, "className = ?", new String[]{className});
@@ -543,11 +908,10 @@ public class DataCache extends SQLiteOpenHelper {
                 }
             }
         }
-        db.close();
     }
 
     public List<RelField> getRelFields(String className) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         List<RelField> ret = new ArrayList<RelField>();
         Cursor c = db.query(REL_TABLE, new String[]{"field", "type",
                                                     "relModel"},
@@ -566,7 +930,6 @@ public class DataCache extends SQLiteOpenHelper {
             }
         }
         c.close();
-        db.close();
         if (ret.size() > 0) {
             if (noFields) {
                 // Return an empty list
@@ -580,7 +943,7 @@ public class DataCache extends SQLiteOpenHelper {
     }
 
     public RelField getRelField(String className, String fieldName) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         RelField ret = null;
         Cursor c = db.query(REL_TABLE, new String[]{"type", "relModel"},
                             "className = ? AND field = ?",
@@ -593,13 +956,14 @@ public class DataCache extends SQLiteOpenHelper {
             ret = new RelField(className, type, relModel);
         }
         c.close();
-        db.close();
         return ret;
     }
 
     /** Get full models from the result of a query. If the record is partial
      * it is ignored.
-     * The query must set data as first field. */
+     * The query must set data as first field.
+     * Relationnal names are read with one query per relationnal model
+     * whatever the number of records. */
     private List<Model> readModels(Cursor c, SQLiteDatabase db,
                                    String className) {
         List<Model> models = new ArrayList<Model>();
@@ -609,44 +973,109 @@ public class DataCache extends SQLiteOpenHelper {
             }
             byte[] data = c.getBlob(0);
             try {
-                Model m = Model.fromByteArray(data);
+                Model m = this.decodeModel(db, className, data);
                 models.add(m);
-                // Get relationnal fields
-                long minTime = System.currentTimeMillis() - CACHE_LIFETIME;
-                Cursor cf = db.query(REL_TABLE, new String[]{"field, relModel"},
-                                     "className = ? AND type IN (?, ?) "
-                                     + "AND writeTime > ?",
-                                     new String[]{className,
-                                                  "many2one", "one2one",
-                                                  String.valueOf(minTime)},
-                                     null, null, null, null);
-                while (cf.moveToNext()) {
-                    String field = cf.getString(0);
-                    String relModel = cf.getString(1);
-                    if (m.get(field) != null) {
-                        int id = (Integer) m.get(field);
-                        Model rel = this.getRelationnal(relModel, id, db);
-                        m.set2One(field, rel);
-                    }
-                }
-                cf.close();
             } catch (IOException e) {
                 Log.e("Tryton", "Unable to read stored data", e);
             }
         }
+        if (models.size() == 0) {
+            return models;
+        }
+        // Get relationnal fields once for all records
+        long minTime = System.currentTimeMillis() - CACHE_LIFETIME;
+        Cursor cf = db.query(REL_TABLE, new String[]{"field, relModel"},
+                             "className = ? AND type IN (?, ?) "
+                             + "AND writeTime > ?",
+                             new String[]{className,
+                                          "many2one", "one2one",
+                                          String.valueOf(minTime)},
+                             null, null, null, null);
+        Map<String, String> relModels = new HashMap<String, String>();
+        while (cf.moveToNext()) {
+            relModels.put(cf.getString(0), cf.getString(1));
+        }
+        cf.close();
+        if (relModels.size() == 0) {
+            return models;
+        }
+        // Collect the referenced ids by relationnal model
+        Map<String, Set<Integer>> relIds = new HashMap<String, Set<Integer>>();
+        for (String field : relModels.keySet()) {
+            String relModel = relModels.get(field);
+            Set<Integer> ids = relIds.get(relModel);
+            if (ids == null) {
+                ids = new HashSet<Integer>();
+                relIds.put(relModel, ids);
+            }
+            for (Model m : models) {
+                if (m.get(field) != null) {
+                    ids.add((Integer) m.get(field));
+                }
+            }
+        }
+        // Read them all and dispatch them to the records
+        Map<String, Map<Integer, Model>> rels =
+            new HashMap<String, Map<Integer, Model>>();
+        for (String relModel : relIds.keySet()) {
+            rels.put(relModel,
+                     this.getRelationnals(relModel, relIds.get(relModel), db));
+        }
+        for (String field : relModels.keySet()) {
+            Map<Integer, Model> fieldRels = rels.get(relModels.get(field));
+            for (Model m : models) {
+                if (m.get(field) != null) {
+                    int id = (Integer) m.get(field);
+                    m.set2One(field, fieldRels.get(id));
+                }
+            }
+        }
         return models;
     }
-   
+    /** Get a page of records. The pages are read after the last record
+     * of the previous one when it was read before, otherwise the
+     * records before offset are skipped.
+     * Records are in rowid order, which is the order they were first
+     * stored in the cache and not the _order of the model on the server.
+     * Updating a record keeps its rowid, so only adding or deleting
+     * records moves the pages. */
     public List<Model> getData(String className, int offset, int count,
                                ModelViewTypes views) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor c = db.query(MODEL_TABLE, new String[]{"data"},
-                            "className = ? AND data NOT NULL",
-                            new String[]{className},
-                            null, null, null, offset + "," + count);
+        SQLiteDatabase db = this.getDatabase();
+        Long mark = null;
+        if (offset > 0) {
+            synchronized (this.pageMarks) {
+                Map<Integer, Long> marks = this.pageMarks.get(className);
+                if (marks != null) {
+                    mark = marks.get(offset);
+                }
+            }
+        }
+        Cursor c;
+        if (mark != null) {
+            c = db.query(MODEL_TABLE, new String[]{"data", "rowid"},
+                         "className = ? AND data NOT NULL AND rowid > ?",
+                         new String[]{className, mark.toString()},
+                         null, null, "rowid", String.valueOf(count));
+        } else {
+            c = db.query(MODEL_TABLE, new String[]{"data", "rowid"},
+                         "className = ? AND data NOT NULL",
+                         new String[]{className},
+                         null, null, "rowid", offset + "," + count);
+        }
         List<Model> models = this.readModels(c, db, className);
+        if (c.moveToLast()) {
+            // Remember where the next page starts
+            synchronized (this.pageMarks) {
+                Map<Integer, Long> marks = this.pageMarks.get(className);
+                if (marks == null) {
+                    marks = new HashMap<Integer, Long>();
+                    this.pageMarks.put(className, marks);
+                }
+                marks.put(offset + c.getCount(), c.getLong(1));
+            }
+        }
         c.close();
-        db.close();
         // Check if the model have the required fields
         List<String> fields = null;
         if (views != null) {
@@ -674,7 +1103,7 @@ public class DataCache extends SQLiteOpenHelper {
         if (ids == null || ids.size() == 0) {
             return new ArrayList<Model>();
         }
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         String in = "";
         for (int id : ids) {
             in += id + ",";
@@ -686,7 +1115,6 @@ public class DataCache extends SQLiteOpenHelper {
                             null, null, null, null);
         List<Model> models = this.readModels(c, db, className);
         c.close();
-        db.close();
         // Check if the model have the required fields
         List<String> fields = null;
         if (views != null) {
@@ -711,7 +1139,7 @@ public class DataCache extends SQLiteOpenHelper {
 
     /** Get the list of id/name as Models for a className */
     public List<Model> list(String className) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         Cursor c = db.query(MODEL_TABLE, new String[]{"id", "name"},
                             "className = ?",
                             new String[]{className},
@@ -724,7 +1152,6 @@ public class DataCache extends SQLiteOpenHelper {
             models.add(m);
         }
         c.close();
-        db.close();
         return models;
     }
 
@@ -732,7 +1159,7 @@ public class DataCache extends SQLiteOpenHelper {
         if (ids == null || ids.size() == 0) {
             return new ArrayList<Model>();
         }
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         String in = "";
         for (int id : ids) {
             in += id + ",";
@@ -750,125 +1177,224 @@ public class DataCache extends SQLiteOpenHelper {
             models.add(m);
         }
         c.close();
-        db.close();
         return models;
     }
  
-    /** Get a limited model (name and id) a model
+    /** Get limited models (name and id) of a model indexed by id
         (typically for a relationnal field) */
-    private Model getRelationnal(String className, int id, SQLiteDatabase db) {
+    private Map<Integer, Model> getRelationnals(String className,
+                                                Set<Integer> ids,
+                                                SQLiteDatabase db) {
+        Map<Integer, Model> rels = new HashMap<Integer, Model>();
+        if (ids.size() == 0) {
+            return rels;
+        }
+        StringBuilder in = new StringBuilder();
+        for (int id : ids) {
+            if (in.length() > 0) {
+                in.append(",");
+            }
+            in.append(id);
+        }
         Cursor c = db.query(MODEL_TABLE, new String[]{"id", "name"},
-                            "className = ? and id = ?",
-                            new String[]{className, String.valueOf(id)},
+                            "className = ? and id IN (" + in + ")",
+                            new String[]{className},
                             null, null, null, null);
-        if (c.moveToNext()) {
+        while (c.moveToNext()) {
             Model m = new Model(className);
             m.set("id", c.getInt(0));
             m.set("rec_name", c.getString(1));
-            c.close();
-            return m;
+            rels.put(c.getInt(0), m);
         }
         c.close();
-        return null;
+        return rels;
     }
 
     /** Insert data for a whole model class. This removes previous data
      * for the model class. */
     public void storeClassData(String className, List<Model> data) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        db.delete(MODEL_TABLE, "className = ?", new String[]{className});
-        this.storeData(className, data);
-        db.close();
+        SQLiteDatabase db = this.getDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(MODEL_TABLE, "className = ?", new String[]{className});
+            this.resetPages(className);
+            this.storeData(className, data);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         this.setDataCount(className, data.size());
     }
 
-    private void storeRelData(List<Model> rel, long time, SQLiteDatabase db) {
+    /** Compile the statement to set the name of a relationnal record.
+     * It updates only records without full data. */
+    private SQLiteStatement compileRelUpdate(SQLiteDatabase db) {
+        return db.compileStatement("UPDATE " + MODEL_TABLE
+                                   + " SET name = ?, writeTime = ?"
+                                   + " WHERE id = ? AND className = ?"
+                                   + " AND data IS NULL");
+    }
+
+    /** Compile the statement to insert a relationnal record.
+     * It does nothing if the record is already there. */
+    private SQLiteStatement compileRelInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT OR IGNORE INTO " + MODEL_TABLE
+                                   + " (id, className, writeTime, name)"
+                                   + " VALUES (?, ?, ?, ?)");
+    }
+
+    private void storeRelData(List<Model> rel, long time,
+                              SQLiteStatement update, SQLiteStatement insert) {
         for (Model m : rel) {
             if (m == null) {
                 continue;
             }
-            ContentValues v = new ContentValues();
-            v.put("name", m.getString("rec_name"));
-            v.put("id", (Integer) m.get("id"));
-            v.put("className", m.getClassName());
-            v.put("writeTime", time);
+            int id = (Integer) m.get("id");
+            String name = m.getString("rec_name");
             // Store it only if it does not erase a full data
-            if (db.update(MODEL_TABLE, v, "id = ? AND className = ? " +
-                          "AND data IS NULL",
-                          new String[]{m.get("id").toString(), m.getClassName()}
-                          ) == 0) {
-                // Try to insert, in case there is no data
-                Cursor c = db.query(MODEL_TABLE,
-                                    new String[]{"id"},
-                                    "id = ? AND className = ?",
-                                    new String[]{m.get("id").toString(),
-                                                 m.getClassName()}, null,
-                                    null, null, null);
-                if (c.moveToNext()) {
-                    // Already there, full data. Keep as is
-                } else {            
-                    db.insert(MODEL_TABLE, null, v);
-                }
-                c.close();
+            if (name == null) {
+                update.bindNull(1);
+            } else {
+                update.bindString(1, name);
+            }
+            update.bindLong(2, time);
+            update.bindLong(3, id);
+            update.bindString(4, m.getClassName());
+            update.execute();
+            // Insert it in case there is no record yet
+            insert.bindLong(1, id);
+            insert.bindString(2, m.getClassName());
+            insert.bindLong(3, time);
+            if (name == null) {
+                insert.bindNull(4);
+            } else {
+                insert.bindString(4, name);
             }
+            insert.execute();
         }
     }
 
     public void storeRelData(String className, List<Model> data) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         long time = System.currentTimeMillis();
-        this.storeRelData(data, time, db);
-        db.close();
+        SQLiteStatement relUpdate = this.compileRelUpdate(db);
+        SQLiteStatement relInsert = this.compileRelInsert(db);
+        db.beginTransaction();
+        try {
+            this.storeRelData(data, time, relUpdate, relInsert);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            relUpdate.close();
+            relInsert.close();
+        }
     }
 
-    /** Add or update data */
+    /** Add or update data. The whole list is written in one transaction. */
     public void storeData(String className, List<Model> data) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteDatabase db = this.getDatabase();
         long time = System.currentTimeMillis();
-        for (Model m : data) {
-            try {
-                Model storeModel = m;
-                // Check if a record is present
-                long minTime = System.currentTimeMillis() - CACHE_LIFETIME;
-                Cursor c = db.query(MODEL_TABLE, new String[]{"data", "id",
-                                                              "writeTime"},
-                    "id = ? and className = ? and writeTime > ?",
-                    new String[]{m.get("id").toString(), className,
-                                 String.valueOf(minTime)}, null, null,
-                    null, null);
-                List<Model> currentdata = this.readModels(c, db, className);
-                if (currentdata.size() > 0) {
-                    // Merge data with current values
-                    Model d = currentdata.get(0);
-                    d.merge(m);
-                    storeModel = d;
-                } else {
-                    // Maybe some outdated data, purge them
-                    db.delete(MODEL_TABLE, "id = ? and className = ?",
-                              new String[]{m.get("id").toString(), className});
-                }
-                c.close();
-                // Insert value
-                ContentValues v = new ContentValues();
-                v.put("name", m.getString("rec_name"));
-                v.put("id", (Integer) m.get("id"));
-                v.put("className", className);
-                v.put("data", storeModel.toByteArray());
-                v.put("writeTime", time);
-                // Try to update record
-                if (db.update(MODEL_TABLE, v, "id = ? and className = ?",
-                              new String[]{storeModel.get("id").toString(), className}
-                              ) == 0) {
-                    // Record is not present, insert it
-                    db.insert(MODEL_TABLE, null, v);
+        long minTime = time - CACHE_LIFETIME;
+        // Records are updated in place to keep their rowid and thus
+        // their position in the pages
+        SQLiteStatement update = db.compileStatement("UPDATE " + MODEL_TABLE
+                                                     + " SET writeTime = ?,"
+                                                     + " name = ?, data = ?"
+                                                     + " WHERE id = ?"
+                                                     + " AND className = ?");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                                                     + MODEL_TABLE
+                                                     + " (id, className, "
+                                                     + "writeTime, name, data)"
+                                                     + " VALUES (?, ?, ?, ?, ?)");
+        SQLiteStatement changes = db.compileStatement("SELECT changes()");
+        SQLiteStatement relUpdate = this.compileRelUpdate(db);
+        SQLiteStatement relInsert = this.compileRelInsert(db);
+        ModelCodec.Dictionary dict = this.getDictionary(db, className);
+        int savedNames = -1;
+        boolean added = false;
+        db.beginTransaction();
+        try {
+            for (Model m : data) {
+                try {
+                    Model storeModel = m;
+                    // Check if a record is present
+                    Cursor c = db.query(MODEL_TABLE,
+                                        new String[]{"data", "writeTime"},
+                                        "id = ? and className = ?",
+                                        new String[]{m.get("id").toString(),
+                                                     className},
+                                        null, null, null, null);
+                    boolean hadData = c.moveToNext() && !c.isNull(0);
+                    if (hadData && c.getLong(1) > minTime) {
+                        // Merge data with current values
+                        Model d = this.decodeModel(db, className,
+                                                   c.getBlob(0));
+                        if (d != null) {
+                            d.merge(m);
+                            storeModel = d;
+                        }
+                    }
+                    c.close();
+                    // Update value, replacing outdated data if any
+                    int id = (Integer) m.get("id");
+                    String name = m.getString("rec_name");
+                    byte[] blob = ModelCodec.encode(storeModel, dict);
+                    update.bindLong(1, time);
+                    if (name == null) {
+                        update.bindNull(2);
+                    } else {
+                        update.bindString(2, name);
+                    }
+                    update.bindBlob(3, blob);
+                    update.bindLong(4, id);
+                    update.bindString(5, className);
+                    update.execute();
+                    if (changes.simpleQueryForLong() == 0) {
+                        // Record is not present, insert it
+                        insert.bindLong(1, id);
+                        insert.bindString(2, className);
+                        insert.bindLong(3, time);
+                        if (name == null) {
+                            insert.bindNull(4);
+                        } else {
+                            insert.bindString(4, name);
+                        }
+                        insert.bindBlob(5, blob);
+                        insert.execute();
+                    }
+                    if (!hadData) {
+                        // A new record shows in the pages
+                        added = true;
+                    }
+                    // Store relationnal fields
+                    this.storeRelData(m.getRelModels(), time,
+                                      relUpdate, relInsert);
+                } catch (IOException e) {
+                    Log.e("Tryton", "Unable to convert model to byte[]", e);
                 }
-                // Store relationnal fields
-                this.storeRelData(storeModel.getRelModels(), time, db);
-            } catch (IOException e) {
-                Log.e("Tryton", "Unable to convert model to byte[]", e);
             }
+            int saved = this.saveDictionary(db, dict);
+            db.setTransactionSuccessful();
+            savedNames = saved;
+        } finally {
+            db.endTransaction();
+            if (savedNames != -1) {
+                dict.setSaved(savedNames);
+            }
+            if (added) {
+                this.resetPages(className);
+            }
+            update.close();
+            insert.close();
+            changes.close();
+            relUpdate.close();
+            relInsert.close();
         }
-        db.close();
+        long elapsed = System.currentTimeMillis() - time;
+        Log.d("Tryton", "Stored " + data.size() + " " + className
+              + " records in " + elapsed + "ms ("
+              + (data.size() * 1000L / Math.max(elapsed, 1)) + " rows/s)");
     }
 
     public void storeData(String className, Model data) {
@@ -880,9 +1406,12 @@ public class DataCache extends SQLiteOpenHelper {
     public void deleteData(Model data) {
         // Delete main record
         String className = data.getClassName();
-        SQLiteDatabase db = this.getWritableDatabase();
-        db.delete(MODEL_TABLE, "id = ? AND className = ?",
-                  new String[]{data.get("id").toString(), className});
+        SQLiteDatabase db = this.getDatabase();
+        if (db.delete(MODEL_TABLE, "id = ? AND className = ?",
+                      new String[]{data.get("id").toString(), className})
+            > 0) {
+            this.resetPages(className);
+        }
         // Update count
         Cursor c = db.query(COUNT_TABLE, new String[]{"count"},
                             "className = ?", new String[]{className},
@@ -895,7 +1424,6 @@ public class DataCache extends SQLiteOpenHelper {
                       new String[]{className});
         }
         c.close();
-        db.close();
         // TODO: mark relational model to be refreshed
     }
 }
\ No newline at end of file
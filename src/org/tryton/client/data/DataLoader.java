@@ -31,6 +31,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.tryton.client.data.MenuCache;
 import org.tryton.client.models.Model;
@@ -38,6 +39,8 @@ import org.tryton.client.models.MenuEntry;
 import org.tryton.client.models.ModelView;
 import org.tryton.client.models.ModelViewTypes;
 import org.tryton.client.models.RelField;
+import org.tryton.client.tools.CallExecutor;
+import org.tryton.client.tools.IdMap;
 import org.tryton.client.tools.TrytonCall;
 
 /** Utility class that checks for data in local cache and request the
@@ -59,11 +62,17 @@ public class DataLoader {
     private static final int MODELDATA_OK = 1012;
     private static final int MODELDATA_NOK = 1013;
     private static final int MODELDATA_CANCELED = 1014;
+    private static final int SYNCSTAMP_OK = 1015;
+    private static final int SYNCSTAMP_NOK = 1016;
+    private static final int SYNC_OK = 1017;
+    private static final int SYNC_NOK = 1018;
 
     private static int callSequence = 1;
     private static Map<Integer, Handler> handlers = new HashMap<Integer, Handler>();
     private static Map<Integer, Integer> localCalls = new HashMap<Integer, Integer>();
     private static Map<Integer, Integer> trytonCalls = new HashMap<Integer, Integer>();
+    /** Tasks of the queued cache lookups, see CallExecutor. */
+    private static Map<Integer, Future<?>> tasks = new HashMap<Integer, Future<?>>();
 
     public static void cancel(int callId) {
         if (localCalls.containsKey(callId)) {
@@ -72,10 +81,33 @@ public class DataLoader {
         if (trytonCalls.containsKey(callId)) {
             TrytonCall.cancel(trytonCalls.get(callId));
         }
+        Future<?> task;
+        synchronized (tasks) {
+            task = tasks.remove(callId);
+        }
+        CallExecutor.cancel(task);
         handlers.remove(callId);
         localCalls.remove(callId);
         trytonCalls.remove(callId);
     }
+    /** Run the cache lookup of a call in CallExecutor. The TrytonCall it
+     * may start is run in the same lane. */
+    private static void start(final int callId, String callName,
+                              boolean background, final Runnable r) {
+        synchronized (tasks) {
+            tasks.put(callId, CallExecutor.submit(callName, new Runnable() {
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            synchronized (tasks) {
+                                tasks.remove(callId);
+                            }
+                        }
+                    }
+                }, background));
+        }
+    }
     /** Check if a call has been canceled or not. */
     private static boolean isCanceled(int callId) {
         return (!handlers.containsKey(callId));
@@ -102,7 +134,7 @@ public class DataLoader {
             break;
         case TrytonCall.CALL_VIEW_OK:
             ModelView view = (ModelView)((Object[])m.obj)[1];
-            DataCache db = new DataCache(ctx);
+            DataCache db = DataCache.get(ctx);
             db.storeView(view);
             what = VIEWS_OK;
             break;
@@ -111,7 +143,7 @@ public class DataLoader {
             Object[] ret = (Object[]) m.obj;
             MenuEntry origin = (MenuEntry) ret[0];
             ModelViewTypes viewTypes = (ModelViewTypes) ret[1];
-            db = new DataCache(ctx);
+            db = DataCache.get(ctx);
             db.storeViewTypes(origin, viewTypes);
             what = VIEWS_OK;
             break;
@@ -119,7 +151,7 @@ public class DataLoader {
             ret = (Object[]) m.obj;
             String className = (String) ret[0];
             int count = (Integer) ret[1];
-            db = new DataCache(ctx);
+            db = DataCache.get(ctx);
             db.setDataCount(className, count);
             what = DATACOUNT_OK;
             break;
@@ -128,7 +160,7 @@ public class DataLoader {
             className = (String) ret[0];
             @SuppressWarnings("unchecked")
             List<RelField> rel = (List<RelField>)ret[1];
-            db = new DataCache(ctx);
+            db = DataCache.get(ctx);
             db.storeRelFields(className, rel);
             what = RELFIELDS_OK;
             break;
@@ -137,10 +169,25 @@ public class DataLoader {
             className = (String) ret[0];
             @SuppressWarnings("unchecked")
             List<Model> data = (List<Model>)ret[1];
-            db = new DataCache(ctx);
+            db = DataCache.get(ctx);
             db.storeData(className, data);
             what = DATA_OK;
             break;
+        case TrytonCall.CALL_SYNCSTAMP_OK:
+            what = SYNCSTAMP_OK;
+            break;
+        case TrytonCall.CALL_SYNC_OK:
+            ret = (Object[]) m.obj;
+            className = (String) ret[0];
+            @SuppressWarnings("unchecked")
+            List<Model> changed = (List<Model>) ret[1];
+            @SuppressWarnings("unchecked")
+            List<Integer> deleted = (List<Integer>) ret[2];
+            db = DataCache.get(ctx);
+            db.applyDelta(className, changed, deleted, (Integer) ret[3],
+                          (String) ret[4]);
+            what = SYNC_OK;
+            break;
         case TrytonCall.CALL_MENUS_NOK:
             what = MENUS_NOK;
             break;
@@ -157,6 +204,12 @@ public class DataLoader {
         case TrytonCall.CALL_DATA_NOK:
             what = DATA_NOK;
             break;
+        case TrytonCall.CALL_SYNCSTAMP_NOK:
+            what = SYNCSTAMP_NOK;
+            break;
+        case TrytonCall.CALL_SYNC_NOK:
+            what = SYNC_NOK;
+            break;
         }
         return what;
     }
@@ -208,7 +261,7 @@ public class DataLoader {
         final int callId = callSequence++;
         handlers.put(callId, h);
         final Handler fwdHandler = newHandler(callId, ctx);
-        new Thread() {
+        start(callId, "loadMenu", false, new Runnable() {
             public void run() {
                 List<MenuEntry> menus = null;
                 try {
@@ -233,22 +286,29 @@ public class DataLoader {
                     trytonCalls.put(callId, tcId);
                 }
             }
-        }.start();
+        });
         return callId;
     }
 
     public static int loadViews(final Context ctx, final MenuEntry origin,
                                  final Handler h,
                                  final boolean forceRefresh) {
+        return loadViews(ctx, origin, h, forceRefresh, false);
+    }
+
+    private static int loadViews(final Context ctx, final MenuEntry origin,
+                                 final Handler h,
+                                 final boolean forceRefresh,
+                                 final boolean background) {
         final int callId = callSequence++;
         handlers.put(callId, h);
         final Handler fwdHandler = newHandler(callId, ctx);
-        new Thread() {
+        start(callId, "loadViews", background, new Runnable() {
             public void run() {
                 if (!forceRefresh) {
                     // Check if views are available from cache
                     ModelViewTypes views = null;
-                    DataCache db = new DataCache(ctx);
+                    DataCache db = DataCache.get(ctx);
                     views = db.loadViews(origin.getId());
                     if (views != null) {
                         Message m = fwdHandler.obtainMessage();
@@ -263,22 +323,29 @@ public class DataLoader {
                                                s.prefs, origin, fwdHandler);
                 trytonCalls.put(callId, tcId);
             }
-        }.start();
+        });
         return callId;
     }
 
     public static int loadView(final Context ctx, final String className,
                                final int viewId, final String type,
                                final Handler h, final boolean forceRefresh) {
+        return loadView(ctx, className, viewId, type, h, forceRefresh, false);
+    }
+
+    private static int loadView(final Context ctx, final String className,
+                                final int viewId, final String type,
+                                final Handler h, final boolean forceRefresh,
+                                final boolean background) {
         final int callId = callSequence++;
         handlers.put(callId, h);
         final Handler fwdHandler = newHandler(callId, ctx);
-        new Thread() {
+        start(callId, "loadView", background, new Runnable() {
             public void run() {
                 if (!forceRefresh) {
                     // Check if the view is available from cache
                     ModelView view = null;
-                    DataCache db = new DataCache(ctx);
+                    DataCache db = DataCache.get(ctx);
                     if (viewId != 0) {
                         view = db.loadView(viewId, className);
                     } else {
@@ -298,22 +365,29 @@ public class DataLoader {
                                               type, fwdHandler);
                 trytonCalls.put(callId, tcId);
             }
-        }.start();
+        });
         return callId;
     }
 
     public static int loadDataCount(final Context ctx, final String className,
                                     final Handler h,
                                     final boolean forceRefresh) {
+        return loadDataCount(ctx, className, h, forceRefresh, false);
+    }
+
+    private static int loadDataCount(final Context ctx, final String className,
+                                     final Handler h,
+                                     final boolean forceRefresh,
+                                     final boolean background) {
         final int callId = callSequence++;
         handlers.put(callId, h);
         final Handler fwdHandler = newHandler(callId, ctx);
-        new Thread() {
+        start(callId, "loadDataCount", background, new Runnable() {
             public void run() {
                 if (!forceRefresh) {
                     // Load from cache
                     int count;
-                    DataCache db = new DataCache(ctx);
+                    DataCache db = DataCache.get(ctx);
                     count = db.getDataCount(className);
                     if (count != -1) {
                         Message m = fwdHandler.obtainMessage();
@@ -329,21 +403,28 @@ public class DataLoader {
                                                    className, fwdHandler);
                 trytonCalls.put(callId, tcId);
             }
-        }.start();
+        });
         return callId;
     }
 
     public static int loadRelFields(final Context ctx, final String className,
                                     final Handler h,
                                     final boolean forceRefresh) {
+        return loadRelFields(ctx, className, h, forceRefresh, false);
+    }
+
+    private static int loadRelFields(final Context ctx, final String className,
+                                     final Handler h,
+                                     final boolean forceRefresh,
+                                     final boolean background) {
         final int callId = callSequence++;
         handlers.put(callId, h);
         final Handler fwdHandler = newHandler(callId, ctx);
-        new Thread() {
+        start(callId, "loadRelFields", background, new Runnable() {
             public void run() {
                 if (!forceRefresh) {
                     // Load from cache
-                    DataCache db = new DataCache(ctx);
+                    DataCache db = DataCache.get(ctx);
                     List<RelField> relFields = db.getRelFields(className);
                     if (relFields != null) {
                         Message m = fwdHandler.obtainMessage();
@@ -359,7 +440,7 @@ public class DataLoader {
                                                    className, fwdHandler);
                 trytonCalls.put(callId, tcId);
             }
-        }.start();
+        });
         return callId;
     }
 
@@ -372,24 +453,26 @@ public class DataLoader {
         ModelViewTypes dummy = new ModelViewTypes(view.getModelName());
         dummy.putView(view.getType(), view);
         return loadData(ctx, className, offset, count, expectedCount, relFields,
-                       dummy, h, forceRefresh);
+                       dummy, h, forceRefresh, false);
 
     }
 
-    private static int loadData(final Context ctx, final String className,
-                                final int offset, final int count,
-                                final int expectedCount,
-                                final List<RelField> relFields,
-                                final ModelViewTypes views,
-                                final Handler h, final boolean forceRefresh) {
+    /** Package scope, used by DataWindow to prefetch in background. */
+    static int loadData(final Context ctx, final String className,
+                        final int offset, final int count,
+                        final int expectedCount,
+                        final List<RelField> relFields,
+                        final ModelViewTypes views,
+                        final Handler h, final boolean forceRefresh,
+                        final boolean background) {
         final int callId = callSequence++;
         handlers.put(callId, h);
         final Handler fwdHandler = newHandler(callId, ctx);
-        new Thread() {
+        start(callId, "loadData", background, new Runnable() {
             public void run() {
                 if (!forceRefresh) {
                     // Load from cache
-                    DataCache db = new DataCache(ctx);
+                    DataCache db = DataCache.get(ctx);
                     List<Model> data = db.getData(className, offset, count, views);
                     if (data.size() == expectedCount) {
                         Message m = fwdHandler.obtainMessage();
@@ -403,10 +486,11 @@ public class DataLoader {
                 Session s = Session.current;
                 int tcId = TrytonCall.getData(s.userId, s.cookie, s.prefs,
                                               className, offset, count,
-                                              relFields, views, fwdHandler);
+                                              relFields, views, forceRefresh,
+                                              fwdHandler);
                 trytonCalls.put(callId, tcId);
             }
-        }.start();
+        });
         return callId;
     }
 
@@ -436,7 +520,7 @@ public class DataLoader {
             ids.addAll(allIds);
         }
         while (ids.remove(null)) { /* loop on remove */ }
-        new Thread() {
+        start(callId, "loadData", false, new Runnable() {
             public void run() {
                 if (ids == null) {
                     // Request inexisting value, return empty list
@@ -449,7 +533,7 @@ public class DataLoader {
                 }
                 if (!forceRefresh) {
                     // Load from cache
-                    DataCache db = new DataCache(ctx);
+                    DataCache db = DataCache.get(ctx);
                     List<Model> data = db.getData(className, ids, views);
                     if (data.size() == ids.size()) {
                         Message m = fwdHandler.obtainMessage();
@@ -463,10 +547,52 @@ public class DataLoader {
                 Session s = Session.current;
                 int tcId = TrytonCall.getData(s.userId, s.cookie, s.prefs,
                                               className, ids, relFields,
-                                              views, fwdHandler);
+                                              views, forceRefresh, fwdHandler);
                 trytonCalls.put(callId, tcId);
             }
-        }.start();
+        });
+        return callId;
+    }
+
+    /** Get the sync stamp of a model before loading it fully. */
+    private static int loadSyncStamp(final Context ctx, final String className,
+                                     final Handler h) {
+        final int callId = callSequence++;
+        handlers.put(callId, h);
+        final Handler fwdHandler = newHandler(callId, ctx);
+        start(callId, "loadSyncStamp", true, new Runnable() {
+            public void run() {
+                Session s = Session.current;
+                int tcId = TrytonCall.getSyncStamp(s.userId, s.cookie,
+                                                   s.prefs, className,
+                                                   fwdHandler);
+                trytonCalls.put(callId, tcId);
+            }
+        });
+        return callId;
+    }
+
+    /** Update a fully loaded model with the changes made on the server
+     * since its last load or sync. */
+    private static int syncData(final Context ctx, final String className,
+                                final List<RelField> relFields,
+                                final ModelViewTypes views,
+                                final Handler h) {
+        final int callId = callSequence++;
+        handlers.put(callId, h);
+        final Handler fwdHandler = newHandler(callId, ctx);
+        start(callId, "syncData", true, new Runnable() {
+            public void run() {
+                DataCache db = DataCache.get(ctx);
+                String stamp = db.getSyncStamp(className);
+                List<Integer> ids = db.getDataIds(className);
+                Session s = Session.current;
+                int tcId = TrytonCall.syncData(s.userId, s.cookie, s.prefs,
+                                               className, stamp, ids,
+                                               relFields, views, fwdHandler);
+                trytonCalls.put(callId, tcId);
+            }
+        });
         return callId;
     }
 
@@ -547,6 +673,12 @@ public class DataLoader {
         private List<RelField> relFields;
         private Handler parent;
         private int subloadIndex;
+        /** True when only the changes since last sync are loaded. */
+        private boolean sync;
+        /** Sync stamp taken before a full load, null if not set. */
+        private String syncStamp;
+        /** Ids received during a full load, null if not set. */
+        private IdMap<Boolean> receivedIds;
 
         /** Constructor for top level load */
         public ModelLoader(int superCallId, Handler parent, Context ctx,
@@ -584,7 +716,7 @@ public class DataLoader {
         public void load() {
             if (this.entry != null) {
                 this.callId = loadViews(this.ctx, this.entry, this,
-                                        this.forceRefresh);
+                                        this.forceRefresh, true);
             } else {
                 // Check if all is not already loaded
                 for (String type : this.viewTypes.getTypes()) {
@@ -592,7 +724,7 @@ public class DataLoader {
                     if (isLoaded(this.className, type, id)) {
                         // The view is already loaded
                         this.pendingViewTypes.remove(type);
-                        DataCache db = new DataCache(this.ctx);
+                        DataCache db = DataCache.get(this.ctx);
                         if (id == 0) {
                             ModelView view = db.loadDefaultView(className, type);
                             this.loadedViewTypes.putView(type, view);
@@ -613,7 +745,7 @@ public class DataLoader {
                     int id = this.viewTypes.getViewId(type);
                     this.pendingViewTypes.remove(0);
                     this.callId = loadView(this.ctx, this.className, id, type,
-                                           this, this.forceRefresh);
+                                           this, this.forceRefresh, true);
                 }
             }
         }
@@ -637,7 +769,8 @@ public class DataLoader {
                         int id = this.viewTypes.getViewId(type);
                         this.pendingViewTypes.remove(0);
                         this.callId = loadView(this.ctx, this.className, id,
-                                               type, this, this.forceRefresh);
+                                               type, this, this.forceRefresh,
+                                               true);
                         // Wait until this one is loaded
                         return;
                     }
@@ -647,8 +780,19 @@ public class DataLoader {
                     this.cancel();
                     return;
                 }
-                this.callId = loadDataCount(this.ctx, this.className, this,
-                                            this.forceRefresh);
+                // Refresh only the changes if it is fully loaded
+                DataCache db = DataCache.get(this.ctx);
+                this.sync = this.forceRefresh
+                    && db.getSyncStamp(this.className) != null
+                    && db.isFullyLoaded(this.className, true);
+                if (this.sync) {
+                    // The count is updated by the sync
+                    this.callId = loadRelFields(this.ctx, this.className, this,
+                                                this.forceRefresh, true);
+                } else {
+                    this.callId = loadDataCount(this.ctx, this.className, this,
+                                                this.forceRefresh, true);
+                }
                 break;
             case DATACOUNT_OK:
                 this.count = (Integer) ((Object[])m.obj)[1];
@@ -657,49 +801,73 @@ public class DataLoader {
                     return;
                 }
                 this.callId = loadRelFields(this.ctx, this.className, this,
-                              this.forceRefresh);
+                              this.forceRefresh, true);
                 break;
             case RELFIELDS_OK:
                 this.relFields = (List<RelField>) ((Object[])m.obj)[1];
-                int expected = Math.min(TrytonCall.CHUNK_SIZE,
-                                        this.count);
                 if (isCanceled(this.superCallId)) {
                     this.cancel();
                     return;
                 }
-                this.callId = loadData(this.ctx, this.className, 0,
-                                       TrytonCall.CHUNK_SIZE,
-                                       expected, this.relFields,
-                                       this.loadedViewTypes, this,
-                                       this.forceRefresh);
+                if (this.sync) {
+                    this.callId = syncData(this.ctx, this.className,
+                                           this.relFields,
+                                           this.loadedViewTypes, this);
+                } else if (this.forceRefresh) {
+                    // Full reload, take the stamp for the next refresh
+                    this.callId = loadSyncStamp(this.ctx, this.className,
+                                                this);
+                } else {
+                    this.loadChunk();
+                }
+                break;
+            case SYNCSTAMP_OK:
+                this.syncStamp = (String) ((Object[])m.obj)[1];
+                this.receivedIds = new IdMap<Boolean>(this.count);
+                if (isCanceled(this.superCallId)) {
+                    this.cancel();
+                    return;
+                }
+                this.loadChunk();
+                break;
+            case SYNCSTAMP_NOK:
+                // Load it anyway, it will be fully loaded next time
+                if (isCanceled(this.superCallId)) {
+                    this.cancel();
+                    return;
+                }
+                this.loadChunk();
                 break;
             case DATA_OK:
+                if (this.receivedIds != null) {
+                    for (Model data : (List<Model>) ((Object[])m.obj)[1]) {
+                        this.receivedIds.put((Integer) data.get("id"),
+                                             Boolean.TRUE);
+                    }
+                }
                 this.offset += TrytonCall.CHUNK_SIZE;
-                expected = Math.min(TrytonCall.CHUNK_SIZE,
-                                    this.count - this.offset);
                 if (isCanceled(this.superCallId)) {
                     this.cancel();
                     return;
                 }
                 if (this.offset < this.count) {
-                    this.callId = loadData(this.ctx, this.className,
-                                           this.offset, TrytonCall.CHUNK_SIZE,
-                                           expected,
-                                           this.relFields, this.loadedViewTypes,
-                                           this, this.forceRefresh);
+                    this.loadChunk();
                 } else {
-                    for (String type : this.loadedViewTypes.getTypes()) {
-                        // Mark view as loaded (id and 0 if it was loaded)
-                        int id = this.loadedViewTypes.getViewId(type);
-                        addLoadedView(this.className, type, id);
-                        if (this.viewTypes != null) {
-                            // In case it was 0 before loading
-                            int oldId = this.viewTypes.getViewId(type);
-                            addLoadedView(this.className, type, oldId);
-                        }
+                    if (this.receivedIds != null) {
+                        // Drop deleted records to be able to sync next time
+                        db = DataCache.get(this.ctx);
+                        db.retainData(this.className, this.receivedIds);
+                        db.setSyncStamp(this.className, this.syncStamp);
                     }
-                    loadRec();
+                    this.dataLoaded();
+                }
+                break;
+            case SYNC_OK:
+                if (isCanceled(this.superCallId)) {
+                    this.cancel();
+                    return;
                 }
+                this.dataLoaded();
                 break;
             case MODELDATA_OK:
                 if (isCanceled(this.superCallId)) {
@@ -716,6 +884,7 @@ public class DataLoader {
             case DATACOUNT_NOK:
             case RELFIELDS_NOK:
             case DATA_NOK:
+            case SYNC_NOK:
                 Message msg = this.parent.obtainMessage();
                 msg.what = MODELDATA_NOK;
                 msg.sendToTarget();
@@ -727,6 +896,29 @@ public class DataLoader {
                 break;
             }
         }
+        /** Load the chunk of data at offset. */
+        private void loadChunk() {
+            int expected = Math.min(TrytonCall.CHUNK_SIZE,
+                                    this.count - this.offset);
+            this.callId = loadData(this.ctx, this.className,
+                                   this.offset, TrytonCall.CHUNK_SIZE,
+                                   expected,
+                                   this.relFields, this.loadedViewTypes,
+                                   this, this.forceRefresh, true);
+        }
+        private void dataLoaded() {
+            for (String type : this.loadedViewTypes.getTypes()) {
+                // Mark view as loaded (id and 0 if it was loaded)
+                int id = this.loadedViewTypes.getViewId(type);
+                addLoadedView(this.className, type, id);
+                if (this.viewTypes != null) {
+                    // In case it was 0 before loading
+                    int oldId = this.viewTypes.getViewId(type);
+                    addLoadedView(this.className, type, oldId);
+                }
+            }
+            loadRec();
+        }
         private void loadRec() {
             if (this.subloadIndex < this.relFields.size()) {
                 RelField rel = this.relFields.get(this.subloadIndex);
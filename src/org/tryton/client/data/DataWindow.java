@@ -0,0 +1,247 @@
+/*
+    Tryton Android
+    Copyright (C) 2012 SARL SCOP Scil (contact@scil.coop)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tryton.client.data;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Message;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.tryton.client.models.Model;
+import org.tryton.client.models.ModelView;
+import org.tryton.client.models.ModelViewTypes;
+import org.tryton.client.models.RelField;
+import org.tryton.client.tools.CallExecutor;
+
+/** All the records of a model as a list that loads them by pages when
+ * they are accessed, from the local cache or from the server through
+ * DataLoader. Only the pages around the last accessed position are kept
+ * in memory and the next page is loaded in background before reaching it.
+ * Records that are not loaded yet are null.
+ * It must be used from the UI thread. */
+public class DataWindow extends AbstractList<Model> {
+
+    /** Receives the loading events of a window. */
+    public interface Listener {
+        /** Called when a page is loaded, the list content changed. */
+        public void onWindowChanged(DataWindow window);
+        /** Called when a page couldn't be loaded with the DataLoader
+         * or TrytonCall message. */
+        public void onWindowError(DataWindow window, Message msg);
+    }
+
+    /** Prepares what is displayed for a record. It is run outside the UI
+     * thread when a page is loaded, see getFormatted. */
+    public interface Formatter {
+        public Object format(Model record);
+    }
+
+    private static final int PAGE_SIZE = 40;
+    /** Number of pages kept on each side of the current one. */
+    private static final int KEPT_PAGES = 2;
+    /** Position in a page from which the next one is prefetched. */
+    private static final int PREFETCH_POSITION = PAGE_SIZE / 2;
+
+    private Context ctx;
+    private String className;
+    private int count;
+    private List<RelField> relFields;
+    private ModelViewTypes views;
+    private boolean forceRefresh;
+    private Listener listener;
+    private Formatter formatter;
+    private Map<Integer, List<Model>> pages;
+    private Map<Integer, Object[]> formattedPages;
+    /** DataLoader call ids of pages being loaded. */
+    private Map<Integer, Integer> loadingPages;
+    private int currentPage;
+
+    public DataWindow(Context ctx, String className, int count,
+                      List<RelField> relFields, ModelView view,
+                      boolean forceRefresh, Listener listener) {
+        this.ctx = ctx;
+        this.className = className;
+        this.count = count;
+        this.relFields = relFields;
+        this.views = new ModelViewTypes(view.getModelName());
+        this.views.putView(view.getType(), view);
+        this.forceRefresh = forceRefresh;
+        this.listener = listener;
+        this.pages = new HashMap<Integer, List<Model>>();
+        this.formattedPages = new HashMap<Integer, Object[]>();
+        this.loadingPages = new HashMap<Integer, Integer>();
+    }
+
+    /** Handler that receives the records of a page. */
+    private class PageHandler extends Handler {
+        private int page;
+        public PageHandler(int page) {
+            super();
+            this.page = page;
+        }
+        @Override
+        @SuppressWarnings("unchecked")
+        public void handleMessage(Message msg) {
+            if (!loadingPages.containsKey(this.page)) {
+                // Canceled
+                return;
+            }
+            switch (msg.what) {
+            case DataLoader.DATA_OK:
+                final List<Model> data =
+                    (List<Model>) ((Object[])msg.obj)[1];
+                if (formatter == null) {
+                    this.setPage(data, null);
+                    return;
+                }
+                // Format while still loading, then show it. It has its
+                // own thread to not delay the calls of the user.
+                final Formatter f = formatter;
+                CallExecutor.submitFormat("formatPage", new Runnable() {
+                        public void run() {
+                            final Object[] formatted = new Object[data.size()];
+                            for (int i = 0; i < formatted.length; i++) {
+                                formatted[i] = f.format(data.get(i));
+                            }
+                            PageHandler.this.post(new Runnable() {
+                                    public void run() {
+                                        setPage(data, formatted);
+                                    }
+                                });
+                        }
+                    });
+                break;
+            default:
+                loadingPages.remove(this.page);
+                listener.onWindowError(DataWindow.this, msg);
+                break;
+            }
+        }
+        private void setPage(List<Model> data, Object[] formatted) {
+            if (loadingPages.remove(this.page) == null
+                || !isKept(this.page)) {
+                // Canceled or scrolled away in the mean time
+                return;
+            }
+            pages.put(this.page, data);
+            if (formatted != null) {
+                formattedPages.put(this.page, formatted);
+            }
+            listener.onWindowChanged(DataWindow.this);
+        }
+    }
+
+    /** Set the formatter to run on the records of the pages loaded
+     * from now. */
+    public void setFormatter(Formatter formatter) {
+        this.formatter = formatter;
+    }
+
+    /** Get the number of records, loaded or not. */
+    @Override
+    public int size() {
+        return this.count;
+    }
+
+    /** Get a record and load the pages around it. Returns null if it is
+     * not loaded yet, the listener is notified when it is. */
+    @Override
+    public Model get(int position) {
+        if (position < 0 || position >= this.count) {
+            throw new IndexOutOfBoundsException(String.valueOf(position));
+        }
+        int page = position / PAGE_SIZE;
+        int pagePosition = position % PAGE_SIZE;
+        this.moveTo(page, pagePosition);
+        List<Model> data = this.pages.get(page);
+        if (data == null || pagePosition >= data.size()) {
+            return null;
+        }
+        return data.get(pagePosition);
+    }
+
+    /** Get what the formatter prepared for a loaded record, or null.
+     * It doesn't load anything. */
+    public Object getFormatted(int position) {
+        Object[] formatted = this.formattedPages.get(position / PAGE_SIZE);
+        if (formatted == null || (position % PAGE_SIZE) >= formatted.length) {
+            return null;
+        }
+        return formatted[position % PAGE_SIZE];
+    }
+
+    /** Check if a record is loaded, without loading it. */
+    public boolean isLoaded(int position) {
+        List<Model> data = this.pages.get(position / PAGE_SIZE);
+        return data != null && (position % PAGE_SIZE) < data.size();
+    }
+
+    private boolean isKept(int page) {
+        return Math.abs(page - this.currentPage) <= KEPT_PAGES;
+    }
+
+    private void moveTo(int page, int pagePosition) {
+        if (page != this.currentPage) {
+            this.currentPage = page;
+            // Forget the pages out of the window
+            for (Integer p : new ArrayList<Integer>(this.pages.keySet())) {
+                if (!this.isKept(p)) {
+                    this.pages.remove(p);
+                    this.formattedPages.remove(p);
+                }
+            }
+            for (Integer p : new ArrayList<Integer>(this.loadingPages.keySet())) {
+                if (!this.isKept(p)) {
+                    DataLoader.cancel(this.loadingPages.remove(p));
+                }
+            }
+        }
+        this.load(page, false);
+        if (pagePosition >= PREFETCH_POSITION) {
+            this.load(page + 1, true);
+        } else if (page > 0) {
+            this.load(page - 1, true);
+        }
+    }
+
+    private void load(int page, boolean background) {
+        int offset = page * PAGE_SIZE;
+        if (offset >= this.count || this.pages.containsKey(page)
+            || this.loadingPages.containsKey(page)) {
+            return;
+        }
+        int expected = Math.min(PAGE_SIZE, this.count - offset);
+        int callId = DataLoader.loadData(this.ctx, this.className, offset,
+                                         PAGE_SIZE, expected, this.relFields,
+                                         this.views, new PageHandler(page),
+                                         this.forceRefresh, background);
+        this.loadingPages.put(page, callId);
+    }
+
+    /** Cancel the pending loads. */
+    public void cancel() {
+        for (int callId : this.loadingPages.values()) {
+            DataLoader.cancel(callId);
+        }
+        this.loadingPages.clear();
+    }
+}
@@ -300,85 +300,95 @@ public class Session {
             return false;
         }
         for (String attr : this.tempModel.getAttributeNames()) {
-            Object value = this.editedModel.get(attr);
-            Object tmpValue = this.tempModel.get(attr);
-            // one2many operations
-            if (this.tempModel.getOne2ManyOperations(attr) != null
-                && this.tempModel.getOne2ManyOperations(attr).size() > 0) {
+            if (isDirty(this.tempModel, this.editedModel, attr)) {
                 return true;
             }
-            // Special case of decimal null representation
-            if (value instanceof Map && ((Map)value).containsKey("decimal")
-                && FieldsConvertion.numericToDouble((Map)value) == null) {
-                value = null;
-            }
-            if (tmpValue instanceof Map
-                && ((Map)tmpValue).containsKey("decimal")
-                && FieldsConvertion.numericToDouble((Map)tmpValue) == null) {
-                tmpValue = null;
-            }
-            // Null comparisons
-            if ((tmpValue == null && value != null)
-                || (tmpValue != null && value == null)) {
-                return true;
-            }
-            // Values comparison
-            if ((tmpValue == null && value != null)
-                || (tmpValue != null && !tmpValue.equals(value))) {
-                // Check for tree field values
-                if (value instanceof Map || tmpValue instanceof Map) {
-                    if (value instanceof Double) {
-                        Double tmp = FieldsConvertion.numericToDouble((Map)tmpValue);
-                        if ((value == null && tmp == null)
-                            || (value != null && value.equals(tmp))
-                            || (tmp != null && tmp.equals(value))) {
-                            // Not dirty
-                            continue;
-                        }
+        }
+        return false;
+    }
+
+    /** Check if a field of an edited model has a value different from
+     * the original one. */
+    public static boolean isDirty(Model tempModel, Model editedModel,
+                                  String attr) {
+        Object value = editedModel.get(attr);
+        Object tmpValue = tempModel.get(attr);
+        // one2many operations
+        if (tempModel.getOne2ManyOperations(attr) != null
+            && tempModel.getOne2ManyOperations(attr).size() > 0) {
+            return true;
+        }
+        // Special case of decimal null representation
+        if (value instanceof Map && ((Map)value).containsKey("decimal")
+            && FieldsConvertion.numericToDouble((Map)value) == null) {
+            value = null;
+        }
+        if (tmpValue instanceof Map
+            && ((Map)tmpValue).containsKey("decimal")
+            && FieldsConvertion.numericToDouble((Map)tmpValue) == null) {
+            tmpValue = null;
+        }
+        // Null comparisons
+        if ((tmpValue == null && value != null)
+            || (tmpValue != null && value == null)) {
+            return true;
+        }
+        // Values comparison
+        if ((tmpValue == null && value != null)
+            || (tmpValue != null && !tmpValue.equals(value))) {
+            // Check for tree field values
+            if (value instanceof Map || tmpValue instanceof Map) {
+                if (value instanceof Double) {
+                    Double tmp = FieldsConvertion.numericToDouble((Map)tmpValue);
+                    if ((value == null && tmp == null)
+                        || (value != null && value.equals(tmp))
+                        || (tmp != null && tmp.equals(value))) {
+                        // Not dirty
+                        return false;
                     }
-                    Map mVal = (Map) value;
-                    Map tmpVal = (Map) tmpValue;
-                    if (mVal.containsKey("decimal")) {
-                        // Its a numeric
-                        Double val = FieldsConvertion.numericToDouble(mVal);
-                        Double tmp = FieldsConvertion.numericToDouble(tmpVal);
-                        if ((val == null && tmp == null)
-                            || (val != null && val.equals(tmp))
-                            || (tmp != null && tmp.equals(val))) {
+                }
+                Map mVal = (Map) value;
+                Map tmpVal = (Map) tmpValue;
+                if (mVal.containsKey("decimal")) {
+                    // Its a numeric
+                    Double val = FieldsConvertion.numericToDouble(mVal);
+                    Double tmp = FieldsConvertion.numericToDouble(tmpVal);
+                    if ((val == null && tmp == null)
+                        || (val != null && val.equals(tmp))
+                        || (tmp != null && tmp.equals(val))) {
+                        // Not dirty
+                        return false;
+                    }
+                } else if (mVal.containsKey("year")) {
+                    if (mVal.containsKey("hour")) {
+                        // It's a datetime
+                        int[] val = FieldsConvertion.dateTimeToIntA(mVal);
+                        int[] tmp = FieldsConvertion.dateTimeToIntA(tmpVal);
+                        if (val[0] == tmp[0] && val[1] == tmp[1]
+                            && val[2] == tmp[2] && val[3] == tmp[3]
+                            && val[4] == tmp[4]) {
                             // Not dirty
-                            continue;
-                        }
-                    } else if (mVal.containsKey("year")) {
-                        if (mVal.containsKey("hour")) {
-                            // It's a datetime
-                            int[] val = FieldsConvertion.dateTimeToIntA(mVal);
-                            int[] tmp = FieldsConvertion.dateTimeToIntA(tmpVal);
-                            if (val[0] == tmp[0] && val[1] == tmp[1]
-                                && val[2] == tmp[2] && val[3] == tmp[3]
-                                && val[4] == tmp[4]) {
-                                // Not dirty
-                                continue;
-                            }
-                        } else {
-                            // It's a date
-                            int[] val = FieldsConvertion.dateToIntA(mVal);
-                            int[] tmp = FieldsConvertion.dateToIntA(tmpVal);
-                            if (val[0] == tmp[0] && val[1] == tmp[1]
-                                && val[2] == tmp[2]) {
-                                continue;
-                            }
+                            return false;
                         }
-                    } else if (mVal.containsKey("hour")) {
-                        // It's a time
-                        int[] val = FieldsConvertion.timeToIntA(mVal);
-                        int[] tmp = FieldsConvertion.timeToIntA(tmpVal);
-                        if (val[0] == tmp[0] && val[1] == tmp[1]) {
-                            continue;
+                    } else {
+                        // It's a date
+                        int[] val = FieldsConvertion.dateToIntA(mVal);
+                        int[] tmp = FieldsConvertion.dateToIntA(tmpVal);
+                        if (val[0] == tmp[0] && val[1] == tmp[1]
+                            && val[2] == tmp[2]) {
+                            return false;
                         }
                     }
+                } else if (mVal.containsKey("hour")) {
+                    // It's a time
+                    int[] val = FieldsConvertion.timeToIntA(mVal);
+                    int[] tmp = FieldsConvertion.timeToIntA(tmpVal);
+                    if (val[0] == tmp[0] && val[1] == tmp[1]) {
+                        return false;
+                    }
                 }
-                return true;
             }
+            return true;
         }
         return false;
     }
@@ -17,6 +17,7 @@
 */
 package org.tryton.client.models;
 
+import android.content.Context;
 import android.graphics.drawable.Drawable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -36,8 +37,6 @@ public class MenuEntry implements Serializable {
     private String label;
     private String actionType;
     private int actionId;
-    // icon is declared transient as Drawables are not serializable
-    private transient Drawable icon;
     private String iconSource;
     private String iconName;
     private int sequence;
@@ -95,12 +94,13 @@ public class MenuEntry implements Serializable {
         this.children.add(0, child);
     }
 
-    public Drawable getIcon() {
-        if (this.icon == null
-            && this.iconSource != null && this.iconName != null) {
-            this.icon = SVGFactory.getDrawable(this.iconName, this.iconSource);
+    /** Get the icon from SVGFactory, which caches it, or null if the
+     * entry has none. */
+    public Drawable getIcon(Context ctx) {
+        if (this.iconSource != null && this.iconName != null) {
+            return SVGFactory.getDrawable(this.iconName, this.iconSource, ctx);
         }
-        return icon;
+        return null;
     }
 
     public void setIconSource(String iconName, String source) {
@@ -20,9 +20,7 @@ package org.tryton.client.models;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -123,6 +121,13 @@ public class Model implements Serializable {
         this.toMany = new TreeMap<String, List<Model>>();
     }
 
+    /** Create a model from already converted attributes, as read by
+     * JSONStreamReader.readObject. */
+    public Model(String className, Map<String, Object> attributes) {
+        this(className);
+        this.attributes = attributes;
+    }
+
     public String getClassName() {
         return this.className;
     }
@@ -262,18 +267,17 @@ public class Model implements Serializable {
         }
     }
 
-    /** Convert this model to raw bytes to store it */
+    /** Convert this model to raw bytes to store it. See ModelCodec. */
     public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
-        ObjectOutputStream oos = new ObjectOutputStream(bos);
-        oos.writeObject(this.className);
-        oos.writeObject(this.attributes);
-        byte[] data = bos.toByteArray();
-        oos.close();
-        return data;
+        return ModelCodec.encode(this, null);
     }
 
+    /** Read a model from raw bytes. It reads both the ModelCodec format
+     * and the former serialized one. */
     public static Model fromByteArray(byte[] data) throws IOException {
+        if (ModelCodec.isEncoded(data)) {
+            return ModelCodec.decode(data, null);
+        }
         ByteArrayInputStream bis = new ByteArrayInputStream(data);
         ObjectInputStream ois = new ObjectInputStream(bis);
         Model m = null;
@@ -0,0 +1,532 @@
+/*
+    Tryton Android
+    Copyright (C) 2012 SARL SCOP Scil (contact@scil.coop)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tryton.client.models;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Compact binary format for models.
+ * A record starts with a magic byte and a version, then the class name and
+ * the attributes. Integers are written as variable length numbers and Tryton
+ * dates, datetimes, times and decimals have their own compact tags.
+ * Field names can either be written as is, or as an index in a Dictionary
+ * shared by all records of a class name (see DataCache). */
+public class ModelCodec {
+
+    /** First byte of all encoded data. Java serialization starts with 0xAC. */
+    public static final byte MAGIC = 0x54;
+    public static final byte VERSION = 1;
+
+    private static final int FLAG_DICTIONARY = 1;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_DOUBLE = 5;
+    private static final int TAG_STRING = 6;
+    private static final int TAG_LIST = 7;
+    private static final int TAG_MAP = 8;
+    private static final int TAG_DATE = 9;
+    private static final int TAG_DATETIME = 10;
+    private static final int TAG_TIME = 11;
+    private static final int TAG_DECIMAL = 12;
+    private static final int TAG_INT_LIST = 13;
+    private static final int TAG_SERIALIZED = 14;
+
+    private static final String[] DATE_KEYS = {"year", "month", "day"};
+    private static final String[] DATETIME_KEYS = {"year", "month", "day",
+                                                   "hour", "minute", "second",
+                                                   "microsecond"};
+    private static final String[] TIME_KEYS = {"hour", "minute", "second",
+                                               "microsecond"};
+
+    /** Shared instances for decoded field names to save allocations. */
+    private static final Map<String, String> interned =
+        new HashMap<String, String>();
+
+    /** You can't instanciate this. It only uses static functions. */
+    private ModelCodec() {}
+
+    /** The list of field names of a class name. Names are given a
+     * definitive index when first encoded, the owner is responsible of
+     * saving the names added since getSavedCount(). */
+    public static class Dictionary {
+        private String className;
+        private List<String> names;
+        private Map<String, Integer> indexes;
+        private int saved;
+
+        /** Create a dictionary from the already saved names. */
+        public Dictionary(String className, List<String> savedNames) {
+            this.className = className;
+            this.names = new ArrayList<String>();
+            this.indexes = new HashMap<String, Integer>();
+            for (String name : savedNames) {
+                this.indexOf(name);
+            }
+            this.saved = this.names.size();
+        }
+
+        public String getClassName() {
+            return this.className;
+        }
+
+        /** Get the index of a name, adding it if not present. */
+        public synchronized int indexOf(String name) {
+            Integer index = this.indexes.get(name);
+            if (index == null) {
+                index = this.names.size();
+                this.names.add(name);
+                this.indexes.put(name, index);
+            }
+            return index;
+        }
+
+        public synchronized String getName(int index) throws IOException {
+            if (index < 0 || index >= this.names.size()) {
+                throw new IOException("Unknown field " + index + " for "
+                                      + this.className);
+            }
+            return this.names.get(index);
+        }
+
+        /** Get the number of names that are already saved. */
+        public synchronized int getSavedCount() {
+            return this.saved;
+        }
+
+        /** Get the names added since the last call to setSaved. */
+        public synchronized List<String> getUnsavedNames() {
+            return new ArrayList<String>(this.names.subList(this.saved,
+                                                            this.names.size()));
+        }
+
+        /** Mark the names up to count as saved. */
+        public synchronized void setSaved(int count) {
+            if (count > this.saved) {
+                this.saved = count;
+            }
+        }
+
+        public synchronized int size() {
+            return this.names.size();
+        }
+    }
+
+    /** Check if some data are in this format (or in the old serialized one) */
+    public static boolean isEncoded(byte[] data) {
+        return data != null && data.length > 1 && data[0] == MAGIC;
+    }
+
+    /** Check if some data need a dictionary to be decoded. */
+    public static boolean usesDictionary(byte[] data) {
+        return isEncoded(data) && data.length > 2
+            && (data[2] & FLAG_DICTIONARY) != 0;
+    }
+
+    /** Encode a model. Field names are written as is when dict is null. */
+    public static byte[] encode(Model m, Dictionary dict) throws IOException {
+        Writer w = new Writer(256);
+        w.writeByte(MAGIC);
+        w.writeByte(VERSION);
+        w.writeByte(dict == null ? 0 : FLAG_DICTIONARY);
+        w.writeString(m.getClassName());
+        w.writeVarInt(m.getAttributeNames().size());
+        for (String name : m.getAttributeNames()) {
+            if (dict == null) {
+                w.writeString(name);
+            } else {
+                w.writeVarInt(dict.indexOf(name));
+            }
+            w.writeValue(m.get(name));
+        }
+        return w.toByteArray();
+    }
+
+    /** Decode a model. Dict must be the one used to encode it if any. */
+    public static Model decode(byte[] data, Dictionary dict)
+        throws IOException {
+        Reader r = new Reader(data);
+        if (r.readByte() != MAGIC) {
+            throw new IOException("Not an encoded model");
+        }
+        int version = r.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported model version " + version);
+        }
+        boolean useDict = (r.readByte() & FLAG_DICTIONARY) != 0;
+        if (useDict && dict == null) {
+            throw new IOException("A dictionary is required to decode");
+        }
+        Model m = new Model(r.readString());
+        int count = r.readVarInt();
+        for (int i = 0; i < count; i++) {
+            String name;
+            if (useDict) {
+                name = dict.getName(r.readVarInt());
+            } else {
+                name = intern(r.readString());
+            }
+            m.set(name, r.readValue());
+        }
+        return m;
+    }
+
+    private static String intern(String name) {
+        synchronized (interned) {
+            String shared = interned.get(name);
+            if (shared == null) {
+                interned.put(name, name);
+                shared = name;
+            }
+            return shared;
+        }
+    }
+
+    /** Check if a map is a Tryton typed value with exactly the given
+     * integer keys. */
+    private static boolean isTyped(Map<?, ?> map, String className,
+                                   String[] keys) {
+        if (map.size() != keys.length + 1
+            || !className.equals(map.get("__class__"))) {
+            return false;
+        }
+        for (String key : keys) {
+            if (!(map.get(key) instanceof Integer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Growable output buffer. */
+    static class Writer {
+        private byte[] buf;
+        private int count;
+
+        public Writer(int size) {
+            this.buf = new byte[size];
+        }
+
+        private void ensure(int more) {
+            if (this.count + more > this.buf.length) {
+                int size = Math.max(this.buf.length * 2, this.count + more);
+                byte[] newBuf = new byte[size];
+                System.arraycopy(this.buf, 0, newBuf, 0, this.count);
+                this.buf = newBuf;
+            }
+        }
+
+        public void writeByte(int b) {
+            this.ensure(1);
+            this.buf[this.count++] = (byte) b;
+        }
+
+        public void writeBytes(byte[] b) {
+            this.ensure(b.length);
+            System.arraycopy(b, 0, this.buf, this.count, b.length);
+            this.count += b.length;
+        }
+
+        public void writeVarLong(long v) {
+            this.ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                this.buf[this.count++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            this.buf[this.count++] = (byte) v;
+        }
+
+        public void writeVarInt(int v) {
+            this.writeVarLong(v & 0xFFFFFFFFL);
+        }
+
+        /** Write a signed number, small negative values stay short. */
+        public void writeSignedVarLong(long v) {
+            this.writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        public void writeBoolean(boolean b) {
+            this.writeByte(b ? 1 : 0);
+        }
+
+        public void writeString(String s) throws UnsupportedEncodingException {
+            if (s == null) {
+                this.writeVarInt(0);
+                return;
+            }
+            byte[] b = s.getBytes("UTF-8");
+            this.writeVarInt(b.length + 1);
+            this.writeBytes(b);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void writeValue(Object value) throws IOException {
+            if (value == null) {
+                this.writeByte(TAG_NULL);
+            } else if (value instanceof Boolean) {
+                this.writeByte(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Integer) {
+                this.writeByte(TAG_INT);
+                this.writeSignedVarLong((Integer) value);
+            } else if (value instanceof Long) {
+                this.writeByte(TAG_LONG);
+                this.writeSignedVarLong((Long) value);
+            } else if (value instanceof Double) {
+                this.writeByte(TAG_DOUBLE);
+                long bits = Double.doubleToLongBits((Double) value);
+                this.ensure(8);
+                for (int i = 56; i >= 0; i -= 8) {
+                    this.buf[this.count++] = (byte) (bits >>> i);
+                }
+            } else if (value instanceof String) {
+                this.writeByte(TAG_STRING);
+                this.writeString((String) value);
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                boolean ints = true;
+                for (Object o : list) {
+                    if (!(o instanceof Integer)) {
+                        ints = false;
+                        break;
+                    }
+                }
+                this.writeByte(ints ? TAG_INT_LIST : TAG_LIST);
+                this.writeVarInt(list.size());
+                for (Object o : list) {
+                    if (ints) {
+                        this.writeSignedVarLong((Integer) o);
+                    } else {
+                        this.writeValue(o);
+                    }
+                }
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                if (isTyped(map, "date", DATE_KEYS)) {
+                    this.writeByte(TAG_DATE);
+                    this.writeInts(map, DATE_KEYS);
+                } else if (isTyped(map, "datetime", DATETIME_KEYS)) {
+                    this.writeByte(TAG_DATETIME);
+                    this.writeInts(map, DATETIME_KEYS);
+                } else if (isTyped(map, "time", TIME_KEYS)) {
+                    this.writeByte(TAG_TIME);
+                    this.writeInts(map, TIME_KEYS);
+                } else if (map.size() == 2
+                           && "Decimal".equals(map.get("__class__"))
+                           && map.get("decimal") instanceof String) {
+                    this.writeByte(TAG_DECIMAL);
+                    this.writeString((String) map.get("decimal"));
+                } else {
+                    this.writeByte(TAG_MAP);
+                    this.writeVarInt(map.size());
+                    for (Object key : map.keySet()) {
+                        this.writeString((String) key);
+                        this.writeValue(map.get(key));
+                    }
+                }
+            } else {
+                // Unknown type, keep it as is
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(bos);
+                oos.writeObject(value);
+                oos.close();
+                byte[] b = bos.toByteArray();
+                this.writeByte(TAG_SERIALIZED);
+                this.writeVarInt(b.length);
+                this.writeBytes(b);
+            }
+        }
+
+        private void writeInts(Map<?, ?> map, String[] keys) {
+            for (String key : keys) {
+                this.writeSignedVarLong((Integer) map.get(key));
+            }
+        }
+
+        public byte[] toByteArray() {
+            byte[] data = new byte[this.count];
+            System.arraycopy(this.buf, 0, data, 0, this.count);
+            return data;
+        }
+    }
+
+    /** Input over an encoded byte array. */
+    static class Reader {
+        private byte[] buf;
+        private int pos;
+
+        public Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        private void check(int more) throws IOException {
+            if (this.pos + more > this.buf.length) {
+                throw new IOException("Unexpected end of data");
+            }
+        }
+
+        public int readByte() throws IOException {
+            this.check(1);
+            return this.buf[this.pos++];
+        }
+
+        public long readVarLong() throws IOException {
+            long v = 0;
+            int shift = 0;
+            while (true) {
+                int b = this.readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+                shift += 7;
+                if (shift > 63) {
+                    throw new IOException("Malformed number");
+                }
+            }
+        }
+
+        public int readVarInt() throws IOException {
+            return (int) this.readVarLong();
+        }
+
+        public long readSignedVarLong() throws IOException {
+            long v = this.readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /** Read bytes prefixed by their length. */
+        public byte[] readBytes() throws IOException {
+            int length = this.readVarInt();
+            this.check(length);
+            byte[] b = new byte[length];
+            System.arraycopy(this.buf, this.pos, b, 0, length);
+            this.pos += length;
+            return b;
+        }
+
+        public boolean readBoolean() throws IOException {
+            return this.readByte() != 0;
+        }
+
+        public String readString() throws IOException {
+            int length = this.readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            this.check(length);
+            String s = new String(this.buf, this.pos, length, "UTF-8");
+            this.pos += length;
+            return s;
+        }
+
+        public Object readValue() throws IOException {
+            int tag = this.readByte();
+            switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_INT:
+                return (int) this.readSignedVarLong();
+            case TAG_LONG:
+                return this.readSignedVarLong();
+            case TAG_DOUBLE:
+                this.check(8);
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | (this.buf[this.pos++] & 0xFF);
+                }
+                return Double.longBitsToDouble(bits);
+            case TAG_STRING:
+                return this.readString();
+            case TAG_INT_LIST:
+                int size = this.readVarInt();
+                List<Object> ints = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    ints.add((int) this.readSignedVarLong());
+                }
+                return ints;
+            case TAG_LIST:
+                size = this.readVarInt();
+                List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(this.readValue());
+                }
+                return list;
+            case TAG_MAP:
+                size = this.readVarInt();
+                Map<String, Object> map = new TreeMap<String, Object>();
+                for (int i = 0; i < size; i++) {
+                    String key = intern(this.readString());
+                    map.put(key, this.readValue());
+                }
+                return map;
+            case TAG_DATE:
+                return this.readTyped("date", DATE_KEYS);
+            case TAG_DATETIME:
+                return this.readTyped("datetime", DATETIME_KEYS);
+            case TAG_TIME:
+                return this.readTyped("time", TIME_KEYS);
+            case TAG_DECIMAL:
+                Map<String, Object> dec = new TreeMap<String, Object>();
+                dec.put("__class__", "Decimal");
+                dec.put("decimal", this.readString());
+                return dec;
+            case TAG_SERIALIZED:
+                size = this.readVarInt();
+                this.check(size);
+                ObjectInputStream ois = new ObjectInputStream(
+                    new ByteArrayInputStream(this.buf, this.pos, size));
+                this.pos += size;
+                try {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown stored value");
+                } finally {
+                    ois.close();
+                }
+            default:
+                throw new IOException("Unknown tag " + tag);
+            }
+        }
+
+        private Map<String, Object> readTyped(String className, String[] keys)
+            throws IOException {
+            Map<String, Object> map = new TreeMap<String, Object>();
+            map.put("__class__", className);
+            for (String key : keys) {
+                map.put(key, (int) this.readSignedVarLong());
+            }
+            return map;
+        }
+    }
+}
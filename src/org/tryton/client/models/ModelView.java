@@ -17,18 +17,18 @@
 */
 package org.tryton.client.models;
 
+import java.util.ArrayList;
 import java.util.TreeMap;
 import java.util.List;
 import java.util.Map;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.tryton.client.tools.ArchParser;
 
 /** The representation of a view of a given type. When loading a model view
  * it should always be build before giving it to the application.
@@ -57,6 +57,17 @@ public class ModelView implements Serializable {
     // Server optimisation for nested views
     /** Views linked to fields of this view, indexed by field name. */
     protected Map<String, ModelViewTypes> subviews;
+    /** Subview ids found in arch when building, stored with the structure
+     * to restore subviews without parsing arch again. */
+    protected Map<String, ModelViewTypes> archSubviews;
+
+    /** Stored format with the built structure, see toByteArray.
+     * Version 2 checked a hash of arch that never changed and its
+     * structure is not trusted. */
+    private static final int BUILT_VERSION = 3;
+    private static final int STRUCT_FIELD = 0;
+    private static final int STRUCT_AXIS = 1;
+    private static final int STRUCT_MODEL = 2;
 
     /** Create the view from server data. It must be built to be used
      *  in the application */
@@ -171,6 +182,16 @@ public class ModelView implements Serializable {
         this.builtFields = structure;
     }
 
+    /** Set the subview ids found when building. See ArchParser. */
+    public void setArchSubviews(Map<String, ModelViewTypes> archSubviews) {
+        this.archSubviews = archSubviews;
+    }
+
+    /** Check if the structure is available. */
+    public boolean isBuilt() {
+        return this.builtFields != null;
+    }
+
     @Override
     public boolean equals(Object o) {
         return (o instanceof ModelView
@@ -179,32 +200,159 @@ public class ModelView implements Serializable {
                 && ((ModelView)o).arch.equals(this.arch));
     }
 
-    /** Convert this model to raw bytes to store it */
+    /** Convert this model to raw bytes to store it. See ModelCodec.
+     * Once built, the structure is stored with it and the version of
+     * ArchParser and is restored by fromByteArray without parsing arch. */
     public byte[] toByteArray() throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
-        ObjectOutputStream oos = new ObjectOutputStream(bos);
-        oos.writeInt(this.id);
-        oos.writeObject(this.modelName);
-        oos.writeBoolean(this.defaultView);
-        oos.writeObject(this.type);
-        oos.writeObject(this.arch);
-        int fieldsCount = this.fields.size();
-        oos.writeInt(fieldsCount);
+        byte[] structure = this.structureToByteArray();
+        ModelCodec.Writer w = new ModelCodec.Writer(1024);
+        w.writeByte(ModelCodec.MAGIC);
+        if (structure != null) {
+            w.writeByte(BUILT_VERSION);
+        } else {
+            w.writeByte(ModelCodec.VERSION);
+        }
+        w.writeVarInt(this.id);
+        w.writeString(this.modelName);
+        w.writeBoolean(this.defaultView);
+        w.writeString(this.type);
+        w.writeString(this.arch);
+        w.writeVarInt(this.fields.size());
         for (String fieldName : this.fields.keySet()) {
-            oos.writeObject(fieldName);
-            Model field = this.fields.get(fieldName);
-            byte[] fieldData = field.toByteArray();
-            oos.writeObject(fieldData);
+            w.writeString(fieldName);
+            byte[] fieldData = this.fields.get(fieldName).toByteArray();
+            w.writeVarInt(fieldData.length);
+            w.writeBytes(fieldData);
+        }
+        if (structure != null) {
+            w.writeBytes(structure);
+        }
+        return w.toByteArray();
+    }
+
+    /** Get the field name if the model is the field of this view. */
+    private String fieldRef(Model m) {
+        String name = m.getString("name");
+        if (name != null && this.fields.get(name) == m) {
+            return name;
+        }
+        return null;
+    }
+
+    /** Write the built structure. Fields are written by name to share
+     * them with the fields map. Returns null if it can't be stored. */
+    private byte[] structureToByteArray() throws IOException {
+        if (this.builtFields == null || this.archSubviews == null) {
+            return null;
+        }
+        ModelCodec.Writer w = new ModelCodec.Writer(256);
+        w.writeVarInt(ArchParser.STRUCTURE_VERSION);
+        w.writeString(this.title);
+        w.writeString(this.subtype);
+        w.writeVarInt(this.builtFields.size());
+        for (Model m : this.builtFields) {
+            if (m == null) {
+                return null;
+            }
+            String name = this.fieldRef(m);
+            if (name != null) {
+                w.writeByte(STRUCT_FIELD);
+                w.writeString(name);
+            } else if (m.get("axis") instanceof List) {
+                w.writeByte(STRUCT_AXIS);
+                w.writeString(m.getClassName());
+                List<?> axis = (List<?>) m.get("axis");
+                w.writeVarInt(axis.size());
+                for (Object field : axis) {
+                    if (!(field instanceof Model)
+                        || this.fieldRef((Model) field) == null) {
+                        return null;
+                    }
+                    w.writeString(this.fieldRef((Model) field));
+                }
+            } else {
+                w.writeByte(STRUCT_MODEL);
+                byte[] data = m.toByteArray();
+                w.writeVarInt(data.length);
+                w.writeBytes(data);
+            }
+        }
+        w.writeVarInt(this.archSubviews.size());
+        for (String fieldName : this.archSubviews.keySet()) {
+            ModelViewTypes types = this.archSubviews.get(fieldName);
+            w.writeString(fieldName);
+            w.writeString(types.getModelName());
+            w.writeVarInt(types.getTypes().size());
+            for (String type : types.getTypes()) {
+                w.writeString(type);
+                w.writeSignedVarLong(types.getViewId(type));
+            }
         }
-        byte[] data = bos.toByteArray();
-        oos.close();
-        return data;
+        return w.toByteArray();
+    }
+
+    /** Read the structure written by structureToByteArray. It is left
+     * unbuilt if it was built by another version of ArchParser. */
+    private void readStructure(ModelCodec.Reader r) throws IOException {
+        if (r.readVarInt() != ArchParser.STRUCTURE_VERSION) {
+            return;
+        }
+        String title = r.readString();
+        String subtype = r.readString();
+        int count = r.readVarInt();
+        List<Model> structure = new ArrayList<Model>(count);
+        for (int i = 0; i < count; i++) {
+            switch (r.readByte()) {
+            case STRUCT_FIELD:
+                structure.add(this.fields.get(r.readString()));
+                break;
+            case STRUCT_AXIS:
+                Model axis = new Model(r.readString());
+                int axisCount = r.readVarInt();
+                List<Model> axisFields = new ArrayList<Model>(axisCount);
+                for (int j = 0; j < axisCount; j++) {
+                    axisFields.add(this.fields.get(r.readString()));
+                }
+                axis.set("axis", axisFields);
+                structure.add(axis);
+                break;
+            case STRUCT_MODEL:
+                structure.add(Model.fromByteArray(r.readBytes()));
+                break;
+            default:
+                throw new IOException("Invalid view structure");
+            }
+        }
+        Map<String, ModelViewTypes> archSubviews =
+            new TreeMap<String, ModelViewTypes>();
+        int subviewsCount = r.readVarInt();
+        for (int i = 0; i < subviewsCount; i++) {
+            String fieldName = r.readString();
+            ModelViewTypes types = new ModelViewTypes(r.readString());
+            ModelViewTypes copy = new ModelViewTypes(types.getModelName());
+            int typesCount = r.readVarInt();
+            for (int j = 0; j < typesCount; j++) {
+                String type = r.readString();
+                int id = (int) r.readSignedVarLong();
+                types.putViewId(type, id);
+                copy.putViewId(type, id);
+            }
+            archSubviews.put(fieldName, types);
+            this.subviews.put(fieldName, copy);
+        }
+        this.title = title;
+        this.subtype = subtype;
+        this.archSubviews = archSubviews;
+        this.builtFields = structure;
     }
 
     private ModelView() {}
 
     @SuppressWarnings("unchecked")
     public static ModelView fromByteArray(byte[] data) throws IOException {
+        if (ModelCodec.isEncoded(data)) {
+            return fromEncoded(data);
+        }
         ByteArrayInputStream bis = new ByteArrayInputStream(data);
         ObjectInputStream ois = new ObjectInputStream(bis);
         ModelView v = new ModelView();
@@ -230,4 +378,39 @@ public class ModelView implements Serializable {
         ois.close();
         return v;
     }
+
+    private static ModelView fromEncoded(byte[] data) throws IOException {
+        ModelCodec.Reader r = new ModelCodec.Reader(data);
+        r.readByte(); // Magic
+        int version = r.readByte();
+        if (version != ModelCodec.VERSION && version != BUILT_VERSION
+            && version != BUILT_VERSION - 1) {
+            throw new IOException("Unsupported view version " + version);
+        }
+        ModelView v = new ModelView();
+        v.id = r.readVarInt();
+        v.modelName = r.readString();
+        v.defaultView = r.readBoolean();
+        v.type = r.readString();
+        v.arch = r.readString();
+        int fieldsCount = r.readVarInt();
+        v.fields = new TreeMap<String, Model>();
+        for (int i = 0; i < fieldsCount; i++) {
+            String fieldName = r.readString();
+            v.fields.put(fieldName, Model.fromByteArray(r.readBytes()));
+        }
+        v.subviews = new TreeMap<String, ModelViewTypes>();
+        // The structure of older built versions is ignored and built again
+        if (version == BUILT_VERSION) {
+            try {
+                v.readStructure(r);
+            } catch (IOException e) {
+                // Keep it unbuilt, it will be parsed
+                v.builtFields = null;
+                v.archSubviews = null;
+                v.subviews = new TreeMap<String, ModelViewTypes>();
+            }
+        }
+        return v;
+    }
 }
\ No newline at end of file
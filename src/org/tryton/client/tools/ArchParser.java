@@ -17,18 +17,16 @@
 */
 package org.tryton.client.tools;
 
+import android.util.Log;
+import android.util.Xml;
+import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import org.tryton.client.models.Model;
 import org.tryton.client.models.ModelView;
@@ -37,10 +35,24 @@ import org.tryton.client.models.ModelViewTypes;
 /** Tool to build models from arch and fields. */
 public class ArchParser {
     
+    /** Version of the built structure stored with the views.
+     * Increment it when the output of the parser changes so that stored
+     * views are built again. See ModelView.toByteArray. */
+    public static final int STRUCTURE_VERSION = 2;
+
     private static final int TYPE_UNDEFINED = 0;
     private static final int TYPE_TREE = 1;
     private static final int TYPE_FORM = 2;
     private static final int TYPE_GRAPH = 3;
+
+    /** Pull parser of each thread, reset for each arch. */
+    private static final ThreadLocal<XmlPullParser> parsers =
+        new ThreadLocal<XmlPullParser>() {
+            @Override
+            protected XmlPullParser initialValue() {
+                return Xml.newPullParser();
+            }
+        };
     
     private ModelView view;
 
@@ -52,18 +64,24 @@ public class ArchParser {
      * the arch defines and add some presentation attributes. */
     public void buildTree() {
         try {
-            // Initialize SAX parser
-            SAXParserFactory spf = SAXParserFactory.newInstance();
-            SAXParser sp = spf.newSAXParser();
-            XMLReader xr = sp.getXMLReader();
-            // Set handler that triggers actions on parsing
+            XmlPullParser parser = parsers.get();
+            parser.setInput(new StringReader(view.getArch()));
             ArchHandler handler = new ArchHandler(view);
-            xr.setContentHandler(handler);
-            // Parse and set result
-            xr.parse(new InputSource(new StringReader(view.getArch())));
+            // Read elements and trigger actions
+            int event = parser.getEventType();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG) {
+                    handler.startElement(parser.getName(), parser);
+                } else if (event == XmlPullParser.END_TAG) {
+                    handler.endElement(parser.getName());
+                }
+                event = parser.next();
+            }
+            // Set result
             view.setTitle(handler.getTitle());
             view.setSubtype(handler.getSubtype());
             view.build(handler.getResult());
+            view.setArchSubviews(handler.getSubviews());
             // Merge subviews with discovered subviews
             for (String fieldName : handler.getSubviews().keySet()) {
                 ModelViewTypes subviews = view.getSubview(fieldName);
@@ -78,16 +96,36 @@ public class ArchParser {
                     }
                 }
             }
-        } catch (javax.xml.parsers.ParserConfigurationException e) {
-            e.printStackTrace();
-        } catch (org.xml.sax.SAXException e) {
-            e.printStackTrace();
-        } catch (java.io.IOException e) {
-            e.printStackTrace();
+        } catch (XmlPullParserException e) {
+            Log.e("Tryton", "Unable to parse arch of " + view.getModelName(),
+                  e);
+        } catch (IOException e) {
+            Log.e("Tryton", "Unable to parse arch of " + view.getModelName(),
+                  e);
+        }
+    }
+
+    /** Get the id at index in a comma separated list of ids like
+     * view_ids. Returns 0 if it is not set. */
+    static int idAt(String ids, int index) {
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start = ids.indexOf(',', start) + 1;
+            if (start == 0) {
+                return 0;
+            }
         }
+        int end = ids.indexOf(',', start);
+        if (end == -1) {
+            end = ids.length();
+        }
+        if (end == start) {
+            return 0;
+        }
+        return Integer.parseInt(ids.substring(start, end));
     }
 
-    private static class ArchHandler extends DefaultHandler {
+    private static class ArchHandler {
 
         private static final int STATE_DONTCARE = 0;
         private static final int STATE_AXIS = 1;
@@ -147,83 +185,80 @@ public class ArchParser {
             vt.putViewId(type, id);
         }
 
-        @Override
-        public void startDocument() throws SAXException {
-            // Set up prior to parsing a doc
-        }
-
-        @Override
-        public void endDocument() throws SAXException {
-            // Clean up after parsing a doc
-        }
-        
-        @Override
-        public void startElement(String namespaceURI, String localName,
-                                 String qName, Attributes atts)
-            throws SAXException {
+        /** Handle an opening tag. Tags only used for layout (group,
+         * notebook...) are ignored and don't create anything. */
+        public void startElement(String localName, XmlPullParser atts) {
             // Detect type and title
             if (localName.equals("tree")) {
                 if (type == TYPE_UNDEFINED) {
                     this.type = TYPE_TREE;
-                    this.title = atts.getValue("string");
+                    this.title = atts.getAttributeValue(null, "string");
                 }
             } else if (localName.equals("form")
                        && this.type == TYPE_UNDEFINED) {
                 this.type = TYPE_FORM;
-                this.title = atts.getValue("string");
+                this.title = atts.getAttributeValue(null, "string");
             } else if (localName.equals("graph")
                        && this.type == TYPE_UNDEFINED) {
                 this.type = TYPE_GRAPH;
-                this.title = atts.getValue("string");
-                this.subtype = atts.getValue("type");
+                this.title = atts.getAttributeValue(null, "string");
+                this.subtype = atts.getAttributeValue(null, "type");
             }
             // Field
             if (localName.equals("field")) {
-                String fieldName = atts.getValue("name");
+                String fieldName = atts.getAttributeValue(null, "name");
                 if (fieldName != null) {
                     if (this.state == STATE_DONTCARE) {
                         Model fieldModel = this.fields.get(fieldName);
                         if (fieldModel != null) {
                             this.builtFields.add(fieldModel);
                             // Check for subviews
-                            String viewIds = atts.getValue("view_ids");
-                            String mode = atts.getValue("mode");
-                            String modelName = fieldModel.getString("relation");
+                            String viewIds = atts.getAttributeValue(null,
+                                                                    "view_ids");
+                            String mode = atts.getAttributeValue(null, "mode");
                             if (mode == null || mode.equals("")) {
                                 // No mode, use id as tree view
                                 if (viewIds != null && !viewIds.equals("")) {
-                                    String[] ids = viewIds.split(",");
-                                    int id = new Integer(ids[0]);
+                                    int id = idAt(viewIds, 0);
                                     // Register subview id
                                     this.registerSubview(fieldName, fieldModel,
                                                          "tree", id);
-                                
                                 }
                             } else {
                                 // One2Many field with modes
                                 if (viewIds != null && !viewIds.equals("")) {
-                                    String[] ids = viewIds.split(",");
-                                    String[] modes = mode.split(",");
-                                    for (int i = 0; i < modes.length; i++) {
-                                        String type = modes[i];
-                                        int id = 0;
-                                        if (ids.length > i && !ids[i].equals("")) {
-                                            id = new Integer(ids[i]);
+                                    // Trailing empty modes are ignored
+                                    // like String.split does
+                                    int length = mode.length();
+                                    while (length > 0
+                                           && mode.charAt(length - 1) == ',') {
+                                        length--;
+                                    }
+                                    int start = 0;
+                                    for (int i = 0; start < length; i++) {
+                                        int end = mode.indexOf(',', start);
+                                        if (end == -1 || end > length) {
+                                            end = length;
                                         }
+                                        String type = mode.substring(start, end);
+                                        int id = idAt(viewIds, i);
                                         // Register subview id
                                         this.registerSubview(fieldName, fieldModel,
                                                              type, id);
+                                        start = end + 1;
                                     }
                                 }
                             }
                         }
                     } else if (this.state == STATE_AXIS) {
                         Model fieldModel = this.fields.get(fieldName);
-                        if (atts.getValue("fill") != null) {
-                            fieldModel.set("fill", atts.getValue("fill"));
+                        String fill = atts.getAttributeValue(null, "fill");
+                        if (fill != null) {
+                            fieldModel.set("fill", fill);
                         }
-                        if (atts.getValue("color") != null) {
-                            fieldModel.set("color", atts.getValue("color"));
+                        String color = atts.getAttributeValue(null, "color");
+                        if (color != null) {
+                            fieldModel.set("color", color);
                         }
                         @SuppressWarnings("unchecked")
                         List<Model> axis = (List<Model>) this.stackTop().get("axis");
@@ -234,11 +269,11 @@ public class ArchParser {
                 }
             } else if (localName.equals("label")) {
                 Model labelModel = new Model("label");
-                String strName = atts.getValue("name");
+                String strName = atts.getAttributeValue(null, "name");
                 if (strName != null) {
                     labelModel.set("name", strName);
                 }
-                String string = atts.getValue("string");
+                String string = atts.getAttributeValue(null, "string");
                 if (string != null) {
                     labelModel.set("string", string);
                 }
@@ -258,19 +293,11 @@ public class ArchParser {
             }
         }
 
-        @Override
-        public void characters(char ch[], int start, int length) {
-            // no-op
-        }
-
-        @Override
-        public void endElement(String namespaceURI, String localName,
-                               String qName)
-            throws SAXException {
+        public void endElement(String localName) {
             if (localName.equals("x") || localName.equals("y")) {
                 this.builtFields.add(this.stackTop());
                 this.stackPop();
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,237 @@
+/*
+  Tryton Android
+  Copyright (C) 2012 SARL SCOP Scil (contact@scil.coop)
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tryton.client.tools;
+
+import android.os.Process;
+import android.util.Log;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Shared executor for the asynchronous calls of TrytonCall and DataLoader.
+ * Calls are run on two bounded pools, one for the calls the user is
+ * waiting for and one for background caching, so that caching a whole
+ * menu can't delay the interactive calls. */
+public class CallExecutor {
+
+    /** Maximum number of threads for interactive calls. */
+    private static final int INTERACTIVE_THREADS = 3;
+    /** Maximum number of threads for background calls. */
+    private static final int BACKGROUND_THREADS = 2;
+    /** Maximum number of concurrent relationnal reads for each lane. */
+    private static final int RELATIONNAL_THREADS = 2;
+    /** Number of threads to prepare the data to show. */
+    private static final int FORMAT_THREADS = 1;
+    /** Log the metrics every LOG_INTERVAL calls. */
+    private static final int LOG_INTERVAL = 50;
+
+    private static final Lane interactive =
+        new Lane("interactive", INTERACTIVE_THREADS, false);
+    private static final Lane background =
+        new Lane("background", BACKGROUND_THREADS, true);
+    private static final Lane interactiveRel =
+        new Lane("relationnal", RELATIONNAL_THREADS, false);
+    private static final Lane backgroundRel =
+        new Lane("background-relationnal", RELATIONNAL_THREADS, true);
+    private static final Lane format =
+        new Lane("format", FORMAT_THREADS, false);
+
+    /** You can't instanciate this. It only uses static functions. */
+    private CallExecutor() {}
+
+    /** Thread of a lane, used to know the lane of the current call. */
+    private static class Worker extends Thread {
+        private boolean background;
+        public Worker(Runnable r, String name, boolean background) {
+            super(r, name);
+            this.background = background;
+        }
+        @Override
+        public void run() {
+            if (this.background) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+            super.run();
+        }
+    }
+
+    /** A pool of threads with its metrics. */
+    private static class Lane implements ThreadFactory {
+        private String name;
+        private boolean background;
+        private ThreadPoolExecutor pool;
+        private int threadCount;
+        private int completed;
+        private int canceled;
+        private int maxQueue;
+        private long totalWait;
+        private long totalRun;
+
+        public Lane(String name, int threads, boolean background) {
+            this.name = name;
+            this.background = background;
+            this.pool = new ThreadPoolExecutor(threads, threads,
+                                               30, TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(),
+                                               this);
+        }
+
+        public synchronized Thread newThread(Runnable r) {
+            this.threadCount++;
+            Worker w = new Worker(r, "tryton-" + this.name + "-"
+                                  + this.threadCount, this.background);
+            w.setDaemon(true);
+            return w;
+        }
+
+        public Future<?> submit(final String callName, final Runnable r) {
+            final long queued = System.currentTimeMillis();
+            FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+                    public void run() {
+                        long start = System.currentTimeMillis();
+                        try {
+                            r.run();
+                        } catch (RuntimeException e) {
+                            // The task would hide it otherwise
+                            Log.e("Tryton", callName + " failed", e);
+                            throw e;
+                        } finally {
+                            long end = System.currentTimeMillis();
+                            done(callName, start - queued, end - start);
+                        }
+                    }
+                }, null);
+            this.pool.execute(task);
+            synchronized (this) {
+                int depth = this.pool.getQueue().size();
+                if (depth > this.maxQueue) {
+                    this.maxQueue = depth;
+                }
+            }
+            return task;
+        }
+
+        private synchronized void done(String callName, long wait, long run) {
+            this.completed++;
+            this.totalWait += wait;
+            this.totalRun += run;
+            if (wait > 1000) {
+                Log.d("Tryton", callName + " waited " + wait + "ms in "
+                      + this.name + " queue");
+            }
+            if (this.completed % LOG_INTERVAL == 0) {
+                Log.d("Tryton", this.getStats());
+            }
+        }
+
+        public boolean cancel(Future<?> task) {
+            boolean removed = this.pool.remove((Runnable) task);
+            if (removed) {
+                synchronized (this) {
+                    this.canceled++;
+                }
+            }
+            return removed;
+        }
+
+        public synchronized String getStats() {
+            int count = Math.max(this.completed, 1);
+            return "Calls " + this.name + ": " + this.completed + " done, "
+                + this.canceled + " canceled, "
+                + this.pool.getActiveCount() + " running, "
+                + this.pool.getQueue().size() + " queued (max "
+                + this.maxQueue + "), "
+                + "avg wait " + (this.totalWait / count) + "ms, "
+                + "avg run " + (this.totalRun / count) + "ms";
+        }
+    }
+
+    /** Check if the current thread runs a background call. */
+    public static boolean isBackgroundThread() {
+        Thread t = Thread.currentThread();
+        return t instanceof Worker && ((Worker) t).background;
+    }
+
+    /** Run a call. Calls submitted from a background call are
+     * background calls too. */
+    public static Future<?> submit(String callName, Runnable r) {
+        return submit(callName, r, isBackgroundThread());
+    }
+
+    /** Run a call, in background lane or not. */
+    public static Future<?> submit(String callName, Runnable r,
+                                   boolean inBackground) {
+        if (inBackground) {
+            return background.submit(callName, r);
+        } else {
+            return interactive.submit(callName, r);
+        }
+    }
+
+    /** Run a local task that doesn't call the server, like formatting
+     * loaded records. It doesn't take a thread of the call lanes nor waits
+     * for them. */
+    public static Future<?> submitFormat(String taskName, Runnable r) {
+        return format.submit(taskName, r);
+    }
+
+    /** Cancel a call. If it is still queued it won't be run at all,
+     * if it is already running it must check for cancellation by itself. */
+    public static void cancel(Future<?> task) {
+        if (task == null) {
+            return;
+        }
+        task.cancel(false);
+        if (!interactive.cancel(task) && !background.cancel(task)) {
+            format.cancel(task);
+        }
+    }
+
+    /** Get the executor to run the subcalls of a call concurrently.
+     * It is separated from the call lanes so that a call waiting for its
+     * subcalls can't block them. */
+    public static ExecutorService getRelationnalExecutor() {
+        if (isBackgroundThread()) {
+            return backgroundRel.pool;
+        } else {
+            return interactiveRel.pool;
+        }
+    }
+
+    /** Get the number of calls that can run at the same time in
+     * a lane. */
+    public static int getThreadCount(boolean inBackground) {
+        return inBackground ? BACKGROUND_THREADS : INTERACTIVE_THREADS;
+    }
+
+    /** Get the number of calls waiting for a thread. */
+    public static int getQueueDepth(boolean inBackground) {
+        Lane lane = inBackground ? background : interactive;
+        return lane.pool.getQueue().size();
+    }
+
+    /** Get a summary of the metrics of the lanes. */
+    public static String getStats() {
+        return interactive.getStats() + "\n" + background.getStats()
+            + "\n" + format.getStats();
+    }
+}
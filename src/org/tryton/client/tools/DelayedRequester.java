@@ -23,17 +23,26 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
-import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 import org.tryton.client.Configure;
 import org.tryton.client.PendingRequests;
@@ -41,7 +50,13 @@ import org.tryton.client.R;
 import org.tryton.client.models.Model;
 import org.tryton.client.models.ModelView;
 
-/** Hold requests to the server to send the queue later */
+/** Hold requests to the server to send the queue later.
+ * The queue is saved as a journal: each change (new command, command
+ * done, edited...) is appended as a record with a checksum, so that
+ * saving doesn't depend on the queue size. Loading replays the records
+ * and stops at the first incomplete or corrupted one, which can only be
+ * the last one written when the application was killed. The journal is
+ * rewritten from the queue when it holds too many records. */
 public class DelayedRequester {
 
     private static final int NOTIFY_ID = 1337;
@@ -49,7 +64,22 @@ public class DelayedRequester {
     public static final int CMD_UPDATE = 1;
     public static final int CMD_DELETE = 2;
 
+    /** File of the queue before the journal, read once to convert it. */
     private static final String CACHE_ID = "QUEUE_CACHE_ID";
+    private static final String JOURNAL_ID = "QUEUE_JOURNAL_ID";
+    private static final String JOURNAL_TMP_ID = "QUEUE_JOURNAL_ID.tmp";
+
+    /** Journal records. The header is first, with the database code
+     * and the temporary id. */
+    private static final int REC_HEADER = 0;
+    private static final int REC_ADD = 1;
+    private static final int REC_DONE = 2;
+    private static final int REC_TEMP_ID = 3;
+    private static final int REC_EDIT = 4;
+    /** Size of a record above which it is considered corrupted. */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    /** Records in excess of the queue size before rewriting the journal. */
+    private static final int COMPACT_THRESHOLD = 64;
 
     public static class Command implements Serializable {
         /** Autogenerated serial UID */
@@ -58,6 +88,8 @@ public class DelayedRequester {
         private int cmd;
         private Model data;
         private ModelView view;
+        /** Identifier of the command in the journal */
+        private int seq;
 
         public Command(int cmd, Model data, ModelView view) {
             this.cmd = cmd;
@@ -67,6 +99,20 @@ public class DelayedRequester {
         public int getCmd() { return this.cmd; }
         public Model getData() { return this.data; }
         public ModelView getView() { return this.view; }
+        public int getSeq() { return this.seq; }
+    }
+
+    /** A field of a queued command that holds a temporary id, with the
+     * position in the list of ids for x2many fields (-1 otherwise). */
+    private static class TempIdRef {
+        private Command cmd;
+        private String field;
+        private int position;
+        public TempIdRef(Command cmd, String field, int position) {
+            this.cmd = cmd;
+            this.field = field;
+            this.position = position;
+        }
     }
 
     public static DelayedRequester current;
@@ -77,10 +123,23 @@ public class DelayedRequester {
      * and updated when the definitive one is received. The temp id can
      * appear only in updated models in the queue. */
     private int tempId;
+    private int nextSeq;
+    /** Number of records in the journal, -1 when it is not written yet
+     * by this requester. */
+    private int journalRecords;
+    /** Journal ids of the commands being sent. They are not coalesced
+     * with new ones. */
+    private Set<Integer> sending;
+    /** Where the temporary ids are used in the queue, by temporary id. */
+    private Map<Integer, List<TempIdRef>> tempIdRefs;
 
     public DelayedRequester() {
         this.queue = new ArrayList<Command>();
         this.tempId = -1;
+        this.nextSeq = 1;
+        this.journalRecords = -1;
+        this.sending = new HashSet<Integer>();
+        this.tempIdRefs = new HashMap<Integer, List<TempIdRef>>();
     }
 
     /** Update rec_name locally as it is computed on the server side. */
@@ -103,32 +162,121 @@ public class DelayedRequester {
         newModel.set("id", tempId);
         tempId--;
         this.updateRecName(newModel); // There must be a rec_name
-        this.queue.add(new Command(CMD_CREATE, newModel, editView));
-        this.updateNotification(ctx);
-        try {
-            this.save(ctx);
-        } catch (IOException e) {
-            Log.w("Tryton", "Unable to save DelayedRequester", e);
-        }
+        this.addCommand(new Command(CMD_CREATE, newModel, editView), ctx);
     }
 
+    /** Add an update call in the queue. If the record is already
+     * created or updated in the queue, the update is merged in it
+     * instead, unless it uses records created after it. */
     public void queueUpdate(Model updatedModel, ModelView editView,
                             Context ctx) {
         this.updateRecName(updatedModel); // makes things change on edit
-        this.queue.add(new Command(CMD_UPDATE, updatedModel, editView));
-        this.updateNotification(ctx);
-        try {
-            this.save(ctx);
-        } catch (IOException e) {
-            Log.w("Tryton", "Unable to save DelayedRequester", e);
+        int index = this.lastCommandOn(updatedModel);
+        if (index != -1 && this.queue.get(index).getCmd() != CMD_DELETE
+            && !this.sending.contains(this.queue.get(index).seq)
+            && !this.usesCreatedAfter(updatedModel, index)) {
+            Command pending = this.queue.get(index);
+            pending.getData().merge(updatedModel);
+            this.commandEdited(pending, ctx);
+            return;
         }
+        this.addCommand(new Command(CMD_UPDATE, updatedModel, editView), ctx);
     }
 
+    /** Add a delete call in the queue. When the record is only created
+     * in the queue and nothing else uses it, its commands are removed
+     * instead and nothing is sent. */
     public void queueDelete(Model deletedModel, Context ctx) {
-        this.queue.add(new Command(CMD_DELETE, deletedModel, null));
+        Object id = deletedModel.get("id");
+        if (id instanceof Integer && (Integer) id < 0
+            && !this.isUsed((Integer) id) && !this.isSendingOn(deletedModel)) {
+            for (int i = this.queue.size() - 1; i >= 0; i--) {
+                if (this.isOn(this.queue.get(i), deletedModel)) {
+                    this.removeCommand(i, ctx);
+                }
+            }
+            this.updateNotification(ctx);
+            return;
+        }
+        this.addCommand(new Command(CMD_DELETE, deletedModel, null), ctx);
+    }
+
+    /** Check if a command is on the same record as data. */
+    private boolean isOn(Command cmd, Model data) {
+        Model cmdData = cmd.getData();
+        return cmdData.getClassName().equals(data.getClassName())
+            && cmdData.get("id") != null
+            && cmdData.get("id").equals(data.get("id"));
+    }
+
+    private boolean isSendingOn(Model data) {
+        for (Command cmd : this.queue) {
+            if (this.sending.contains(cmd.seq) && this.isOn(cmd, data)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Get the index of the last command on the same record as data,
+     * or -1. */
+    private int lastCommandOn(Model data) {
+        for (int i = this.queue.size() - 1; i >= 0; i--) {
+            if (this.isOn(this.queue.get(i), data)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Check if a field value is or contains the id. */
+    private static boolean valueUses(Object val, Integer id) {
+        if (id.equals(val)) {
+            return true;
+        } else if (val instanceof List) {
+            return ((List<?>) val).contains(id);
+        }
+        return false;
+    }
+
+    /** Check if a field of data (other than its id) is a record created
+     * by a command after index. */
+    private boolean usesCreatedAfter(Model data, int index) {
+        for (int i = index + 1; i < this.queue.size(); i++) {
+            Command cmd = this.queue.get(i);
+            if (cmd.getCmd() != CMD_CREATE) {
+                continue;
+            }
+            Integer createdId = (Integer) cmd.getData().get("id");
+            for (String key : data.getAttributeNames()) {
+                if (!key.equals("id") && valueUses(data.get(key), createdId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Check if a field of a queued command (other than its id) uses
+     * a temporary id. */
+    private boolean isUsed(Integer tempId) {
+        for (Command cmd : this.queue) {
+            Model data = cmd.getData();
+            for (String key : data.getAttributeNames()) {
+                if (!key.equals("id") && valueUses(data.get(key), tempId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void addCommand(Command cmd, Context ctx) {
+        cmd.seq = this.nextSeq++;
+        this.enqueue(cmd);
         this.updateNotification(ctx);
         try {
-            this.save(ctx);
+            this.append(ctx, this.addRecord(cmd));
         } catch (IOException e) {
             Log.w("Tryton", "Unable to save DelayedRequester", e);
         }
@@ -139,38 +287,216 @@ public class DelayedRequester {
         return this.queue.size();
     }
 
-    public Command getNextCommand() {
-        return this.queue.get(0);
+    /** Check if a command must wait for an earlier one to be done:
+     * both are on the same record, the later one uses the record
+     * created by the earlier one or deletes a record it uses. */
+    private boolean dependsOn(Command later, Command earlier) {
+        if (this.isOn(earlier, later.getData())) {
+            return true;
+        }
+        Model laterData = later.getData();
+        Model earlierData = earlier.getData();
+        if (earlier.getCmd() == CMD_CREATE) {
+            Integer createdId = (Integer) earlierData.get("id");
+            for (String key : laterData.getAttributeNames()) {
+                if (!key.equals("id")
+                    && valueUses(laterData.get(key), createdId)) {
+                    return true;
+                }
+            }
+        }
+        if (later.getCmd() == CMD_DELETE
+            && laterData.get("id") instanceof Integer) {
+            Integer deletedId = (Integer) laterData.get("id");
+            for (String key : earlierData.getAttributeNames()) {
+                if (!key.equals("id")
+                    && valueUses(earlierData.get(key), deletedId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Get the first command that can be sent now: it is not being sent
+     * and doesn't depend on an earlier command still in the queue.
+     * Returns null if there is none. */
+    public Command getReadyCommand() {
+        for (int i = 0; i < this.queue.size(); i++) {
+            Command cmd = this.queue.get(i);
+            if (this.sending.contains(cmd.seq)) {
+                continue;
+            }
+            boolean ready = true;
+            for (int j = 0; j < i; j++) {
+                if (this.dependsOn(cmd, this.queue.get(j))) {
+                    ready = false;
+                    break;
+                }
+            }
+            if (ready) {
+                return cmd;
+            }
+        }
+        return null;
+    }
+
+    /** Get the number of commands being sent. */
+    public int getSendingCount() {
+        return this.sending.size();
+    }
+
+    /** Mark a command as being sent, see getReadyCommand. */
+    public void commandSent(Command cmd) {
+        this.sending.add(cmd.seq);
+    }
+
+    /** Mark a command as not being sent anymore, it will be sent again. */
+    public void commandUnsent(Command cmd) {
+        this.sending.remove(cmd.seq);
+    }
+
+    /** Remove a command sent or skipped from the queue. */
+    public void commandDone(Command cmd, Context ctx) {
+        this.sending.remove(cmd.seq);
+        for (int i = 0; i < this.queue.size(); i++) {
+            if (this.queue.get(i).seq == cmd.seq) {
+                this.removeCommand(i, ctx);
+                return;
+            }
+        }
     }
 
-    public void commandDone(Context ctx) {
-        this.queue.remove(0);
+    private void removeCommand(int index, Context ctx) {
+        Command done = this.queue.remove(index);
+        this.unindexTempIds(done);
         try {
-            this.save(ctx);
+            Record r = new Record(REC_DONE);
+            r.out.writeInt(done.seq);
+            this.append(ctx, r);
+        } catch (IOException e) {
+            Log.w("Tryton", "Unable to save DelayedRequester", e);
+        }
+    }
+
+    /** Save the data of a command edited after being queued. The command
+     * may be a copy of the queued one (restored from a saved state). */
+    public void commandEdited(Command cmd, Context ctx) {
+        Command queued = this.getCommand(cmd.seq);
+        if (queued == null) {
+            return;
+        }
+        queued.data = cmd.getData();
+        this.unindexTempIds(queued);
+        this.indexTempIds(queued);
+        try {
+            Record r = new Record(REC_EDIT);
+            r.out.writeInt(cmd.seq);
+            r.writeBytes(cmd.getData().toByteArray());
+            this.append(ctx, r);
         } catch (IOException e) {
             Log.w("Tryton", "Unable to save DelayedRequester", e);
         }
     }
 
+    /** Get a queued command from its journal id, or null. */
+    public Command getCommand(int seq) {
+        for (Command cmd : this.queue) {
+            if (cmd.seq == seq) {
+                return cmd;
+            }
+        }
+        return null;
+    }
+
     /** Replace a temporary id with a real one in data in the queue. */
+    public void updateTempId(int tempId, int realId, Context ctx) {
+        this.replaceTempId(tempId, realId);
+        try {
+            Record r = new Record(REC_TEMP_ID);
+            r.out.writeInt(tempId);
+            r.out.writeInt(realId);
+            this.append(ctx, r);
+        } catch (IOException e) {
+            Log.w("Tryton", "Unable to save DelayedRequester", e);
+        }
+    }
+
+    private void enqueue(Command cmd) {
+        this.queue.add(cmd);
+        this.indexTempIds(cmd);
+    }
+
+    private void addTempIdRef(int tempId, Command cmd, String field,
+                              int position) {
+        List<TempIdRef> refs = this.tempIdRefs.get(tempId);
+        if (refs == null) {
+            refs = new ArrayList<TempIdRef>();
+            this.tempIdRefs.put(tempId, refs);
+        }
+        refs.add(new TempIdRef(cmd, field, position));
+    }
+
+    /** Register the temporary ids in the data of a command to find them
+     * without reading the whole queue. */
+    private void indexTempIds(Command cmd) {
+        Model data = cmd.getData();
+        for (String key : data.getAttributeNames()) {
+            Object val = data.get(key);
+            if (val instanceof Integer) {
+                if ((Integer) val < 0) {
+                    this.addTempIdRef((Integer) val, cmd, key, -1);
+                }
+            } else if (val instanceof List) {
+                List<?> ids = (List<?>) val;
+                for (int i = 0; i < ids.size(); i++) {
+                    Object id = ids.get(i);
+                    if (id instanceof Integer && (Integer) id < 0) {
+                        this.addTempIdRef((Integer) id, cmd, key, i);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Forget where a command uses temporary ids, when it is removed
+     * from the queue or before indexing its edited data. */
+    private void unindexTempIds(Command cmd) {
+        Iterator<List<TempIdRef>> it = this.tempIdRefs.values().iterator();
+        while (it.hasNext()) {
+            List<TempIdRef> refs = it.next();
+            for (int i = refs.size() - 1; i >= 0; i--) {
+                if (refs.get(i).cmd == cmd) {
+                    refs.remove(i);
+                }
+            }
+            if (refs.size() == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Replace the references to a temporary id. References from an
+     * older version of a command's data are checked before replacing. */
     @SuppressWarnings("unchecked")
-    public void updateTempId(int tempId, int realId) {
-        for (Command cmd : this.queue) {
-            // As tempId is unique, make it brutal
-            Model data = cmd.getData();
-            Integer tempIdInt = new Integer(tempId); // just for equality
-            for (String key : data.getAttributeNames()) {
-                Object val = data.get(key);
+    private void replaceTempId(int tempId, int realId) {
+        List<TempIdRef> refs = this.tempIdRefs.remove(tempId);
+        if (refs == null) {
+            return;
+        }
+        Integer tempIdInt = tempId;
+        for (TempIdRef ref : refs) {
+            Model data = ref.cmd.getData();
+            Object val = data.get(ref.field);
+            if (ref.position == -1) {
                 if (tempIdInt.equals(val)) {
-                    data.set(key, realId);
-                } else if (val instanceof List) {
-                    List ids = (List) data.get(key);
-                    for (int i = 0; i < ids.size(); i++) {
-                        if (tempIdInt.equals(ids.get(i))) {
-                            ids.remove(i);
-                            ids.add(i, realId);
-                        }
-                    }
+                    data.set(ref.field, realId);
+                }
+            } else if (val instanceof List) {
+                List<Object> ids = (List<Object>) val;
+                if (ref.position < ids.size()
+                    && tempIdInt.equals(ids.get(ref.position))) {
+                    ids.set(ref.position, realId);
                 }
             }
         }
@@ -200,32 +526,231 @@ public class DelayedRequester {
         m.notify(NOTIFY_ID, n);
     }
 
-    /** Save the queue on file system */
+    /** A journal record being written. */
+    private static class Record {
+        private ByteArrayOutputStream bytes;
+        private DataOutputStream out;
+        public Record(int type) throws IOException {
+            this.bytes = new ByteArrayOutputStream();
+            this.out = new DataOutputStream(this.bytes);
+            this.out.writeByte(type);
+        }
+        public void writeBytes(byte[] b) throws IOException {
+            this.out.writeInt(b.length);
+            this.out.write(b);
+        }
+        /** Write the record with its size and checksum. */
+        public void writeTo(DataOutputStream dos) throws IOException {
+            byte[] payload = this.bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            dos.writeInt(payload.length);
+            dos.writeInt((int) crc.getValue());
+            dos.write(payload);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return b;
+    }
+
+    private Record addRecord(Command cmd) throws IOException {
+        Record r = new Record(REC_ADD);
+        r.out.writeInt(cmd.seq);
+        r.out.writeInt(cmd.getCmd());
+        r.out.writeInt(this.tempId);
+        r.writeBytes(cmd.getData().toByteArray());
+        r.out.writeBoolean(cmd.getView() != null);
+        if (cmd.getView() != null) {
+            r.writeBytes(cmd.getView().toByteArray());
+        }
+        return r;
+    }
+
+    /** Append a record to the journal, or rewrite it from the queue if
+     * it is not written yet or holds too many outdated records. */
+    private void append(Context ctx, Record r) throws IOException {
+        if (this.journalRecords == -1
+            || this.journalRecords > this.queue.size() * 2 + COMPACT_THRESHOLD) {
+            this.save(ctx);
+            return;
+        }
+        FileOutputStream fos = ctx.openFileOutput(JOURNAL_ID,
+                                                  Context.MODE_APPEND);
+        try {
+            DataOutputStream dos = new DataOutputStream(fos);
+            r.writeTo(dos);
+            dos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        this.journalRecords++;
+    }
+
+    /** Rewrite the journal with only the current queue. It is written
+     * aside and then renamed, so that a crash keeps the previous one. */
     public void save(Context ctx)
         throws IOException {
-        String db = Configure.getDatabaseCode(ctx);
-        FileOutputStream fos = ctx.openFileOutput(CACHE_ID, ctx.MODE_PRIVATE);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(db);
-        oos.writeInt(this.tempId);
-        oos.writeInt(this.queue.size());
-        for (Command cmd : this.queue) {
-            oos.writeInt(cmd.getCmd());
-            oos.writeObject(cmd.getData().toByteArray());
-            oos.writeBoolean(cmd.getView() != null);
-            if (cmd.getView() != null) {
-                oos.writeObject(cmd.getView().toByteArray());
+        FileOutputStream fos = ctx.openFileOutput(JOURNAL_TMP_ID,
+                                                  Context.MODE_PRIVATE);
+        try {
+            DataOutputStream dos = new DataOutputStream(fos);
+            Record header = new Record(REC_HEADER);
+            header.out.writeUTF(Configure.getDatabaseCode(ctx));
+            header.out.writeInt(this.tempId);
+            header.writeTo(dos);
+            for (Command cmd : this.queue) {
+                this.addRecord(cmd).writeTo(dos);
             }
+            dos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        File journal = ctx.getFileStreamPath(JOURNAL_ID);
+        if (!ctx.getFileStreamPath(JOURNAL_TMP_ID).renameTo(journal)) {
+            throw new IOException("Unable to replace " + journal);
         }
-        oos.close();
+        this.journalRecords = this.queue.size() + 1;
+        // The old format is not used anymore
+        ctx.deleteFile(CACHE_ID);
     }
 
-    /** Load the cached menu entries.
-     * If the cache is not set it will return null
-     * (beware of NullPointerExceptions)
+    /** Load the queue from the journal.
+     * It returns null if the queue is for an other database
+     * (beware of NullPointerExceptions) and throws a FileNotFoundException
+     * if there is no queue saved.
      */
-    @SuppressWarnings("unchecked")
     public static DelayedRequester load(Context ctx)
+        throws IOException {
+        if (!ctx.getFileStreamPath(JOURNAL_ID).exists()) {
+            return loadCache(ctx);
+        }
+        FileInputStream fis = ctx.openFileInput(JOURNAL_ID);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+        DelayedRequester req = new DelayedRequester();
+        int records = 0;
+        boolean complete = true;
+        try {
+            while (true) {
+                int first = in.read();
+                if (first == -1) {
+                    // End of journal
+                    break;
+                }
+                int size = (first << 24) | (in.readUnsignedByte() << 16)
+                    | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                if (size <= 0 || size > MAX_RECORD_SIZE) {
+                    complete = false;
+                    break;
+                }
+                int checksum = in.readInt();
+                byte[] payload = new byte[size];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    complete = false;
+                    break;
+                }
+                ByteArrayInputStream bis = new ByteArrayInputStream(payload);
+                DataInputStream rec = new DataInputStream(bis);
+                int type = rec.readByte();
+                if (records == 0) {
+                    if (type != REC_HEADER) {
+                        complete = false;
+                        break;
+                    }
+                    if (!rec.readUTF().equals(Configure.getDatabaseCode(ctx))) {
+                        // The record is not for the current database
+                        return null;
+                    }
+                    req.tempId = rec.readInt();
+                } else {
+                    req.replay(type, rec);
+                }
+                records++;
+            }
+        } catch (EOFException eof) {
+            // Record cut by a crash while writing it
+            complete = false;
+        } finally {
+            in.close();
+        }
+        if (records == 0) {
+            // Not even a header
+            return null;
+        }
+        req.updateNotification(ctx);
+        if (complete) {
+            req.journalRecords = records;
+        } else {
+            // Drop the broken end before appending to it
+            Log.w("Tryton", "Incomplete DelayedRequester journal, "
+                  + records + " records read");
+            req.save(ctx);
+        }
+        return req;
+    }
+
+    /** Apply a journal record to the queue. */
+    private void replay(int type, DataInputStream rec) throws IOException {
+        switch (type) {
+        case REC_ADD:
+            int seq = rec.readInt();
+            int cmdCode = rec.readInt();
+            this.tempId = rec.readInt();
+            Model data = Model.fromByteArray(readBytes(rec));
+            ModelView view = null;
+            if (rec.readBoolean()) {
+                view = readView(readBytes(rec));
+            }
+            Command cmd = new Command(cmdCode, data, view);
+            cmd.seq = seq;
+            this.enqueue(cmd);
+            this.nextSeq = Math.max(this.nextSeq, seq + 1);
+            break;
+        case REC_DONE:
+            Command done = this.getCommand(rec.readInt());
+            if (done != null) {
+                this.queue.remove(done);
+                this.unindexTempIds(done);
+            }
+            break;
+        case REC_TEMP_ID:
+            int tempId = rec.readInt();
+            this.replaceTempId(tempId, rec.readInt());
+            break;
+        case REC_EDIT:
+            Command edited = this.getCommand(rec.readInt());
+            if (edited != null) {
+                edited.data = Model.fromByteArray(readBytes(rec));
+                this.unindexTempIds(edited);
+                this.indexTempIds(edited);
+            }
+            break;
+        default:
+            Log.w("Tryton", "Unknown DelayedRequester record " + type);
+        }
+    }
+
+    private static ModelView readView(byte[] byteData)
+        throws IOException {
+        ModelView view = ModelView.fromByteArray(byteData);
+        if (!view.isBuilt()) {
+            ArchParser p = new ArchParser(view);
+            p.buildTree();
+        }
+        return view;
+    }
+
+    /** Load the queue saved in one file before the journal.
+     * It is written as a journal on the next change. */
+    @SuppressWarnings("unchecked")
+    private static DelayedRequester loadCache(Context ctx)
         throws IOException {
         FileInputStream fis = ctx.openFileInput(CACHE_ID);
         ObjectInputStream ois = new ObjectInputStream(fis);
@@ -237,7 +762,7 @@ public class DelayedRequester {
                 ois.close();
                 return null;
             }
-            int tempId = ois.readInt();
+            req.tempId = ois.readInt();
             int size = ois.readInt();
             
             for (int i = 0; i < size; i++) {
@@ -247,13 +772,11 @@ public class DelayedRequester {
                 boolean hasView = ois.readBoolean();
                 ModelView view = null;
                 if (hasView) {
-                    byteData = (byte[]) ois.readObject();
-                    view = ModelView.fromByteArray(byteData);
-                    ArchParser p = new ArchParser(view);
-                    p.buildTree();
+                    view = readView((byte[]) ois.readObject());
                 }
                 Command cmd = new Command(cmdCode, data, view);
-                req.queue.add(cmd);
+                cmd.seq = req.nextSeq++;
+                req.enqueue(cmd);
             }
             req.updateNotification(ctx);
         } catch (ClassNotFoundException cnfe) {
@@ -266,4 +789,4 @@ public class DelayedRequester {
         return req;
     }
 
-}
\ No newline at end of file
+}
@@ -28,6 +28,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import org.tryton.client.data.DataCache;
+import org.tryton.client.data.Session;
 import org.tryton.client.models.Model;
 import org.tryton.client.models.RelField;
 
@@ -155,12 +156,18 @@ public class FieldsConvertion {
     }
 
     /** Convert a model received by the server or generated by the client
-     * to a model suitable to send back to the server */
+     * to a model suitable to send back to the server.
+     * When previousModel is set, only the fields that changed from it
+     * are kept (with the id), see Session.isDirty. */
     @SuppressWarnings("unchecked")
     public static Model modelToSend(Model model, Model previousModel,
                                         Context ctx) {
         Model send = new Model(model.getClassName());
         for (String attr : model.getAttributeNames()) {
+            if (previousModel != null && !attr.equals("id")
+                && !Session.isDirty(model, previousModel, attr)) {
+                continue;
+            }
             Object oVal = model.get(attr);
             if (oVal instanceof Map) {
                 // Must convert date, time and datetime value
@@ -255,7 +262,7 @@ public class FieldsConvertion {
                     if (dels.length() > 0) {
                         JSONArray cmd = new JSONArray();
                         // Check type, delete for one2many, unlink for many2many
-                        DataCache db = new DataCache(ctx);
+                        DataCache db = DataCache.get(ctx);
                         RelField rel = db.getRelField(model.getClassName(),
                                                       attr);
                         if (rel.getType().equals("many2many")) {
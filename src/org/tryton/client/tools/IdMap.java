@@ -0,0 +1,115 @@
+/*
+  Tryton Android
+  Copyright (C) 2012 SARL SCOP Scil (contact@scil.coop)
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tryton.client.tools;
+
+/** Map with int keys for record ids. Keys are stored in primitive arrays
+ * with open addressing, which avoids boxing every id and keeps lookups in
+ * constant time. Keys are kept in insertion order for keyAt. */
+public class IdMap<V> {
+
+    private int[] keys;
+    private Object[] values;
+    private boolean[] used;
+    /** Keys in insertion order */
+    private int[] order;
+    private int size;
+
+    public IdMap() {
+        this(16);
+    }
+
+    /** Create a map sized for expected keys without growing. */
+    public IdMap(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.used = new boolean[capacity];
+        this.order = new int[Math.max(expected, 8)];
+    }
+
+    /** Get the slot of a key, or of the free slot where it goes. */
+    private int slot(int key) {
+        int mask = this.keys.length - 1;
+        // Mix the bits as ids are often sequential
+        int h = key * 0x9E3779B9;
+        int i = (h ^ (h >>> 16)) & mask;
+        while (this.used[i] && this.keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    public boolean containsKey(int key) {
+        return this.used[this.slot(key)];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        return (V) this.values[this.slot(key)];
+    }
+
+    /** Set the value of a key. Returns true if the key is new. */
+    public boolean put(int key, V value) {
+        int i = this.slot(key);
+        this.values[i] = value;
+        if (this.used[i]) {
+            return false;
+        }
+        this.used[i] = true;
+        this.keys[i] = key;
+        if (this.size == this.order.length) {
+            int[] newOrder = new int[this.size * 2];
+            System.arraycopy(this.order, 0, newOrder, 0, this.size);
+            this.order = newOrder;
+        }
+        this.order[this.size++] = key;
+        if (this.size * 2 > this.keys.length) {
+            this.grow();
+        }
+        return true;
+    }
+
+    private void grow() {
+        int[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        boolean[] oldUsed = this.used;
+        this.keys = new int[oldKeys.length * 2];
+        this.values = new Object[oldKeys.length * 2];
+        this.used = new boolean[oldKeys.length * 2];
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldUsed[j]) {
+                int i = this.slot(oldKeys[j]);
+                this.used[i] = true;
+                this.keys[i] = oldKeys[j];
+                this.values[i] = oldValues[j];
+            }
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /** Get the key inserted at the given position. */
+    public int keyAt(int index) {
+        return this.order[index];
+    }
+}
@@ -0,0 +1,107 @@
+/*
+  Tryton Android
+  Copyright (C) 2012 SARL SCOP Scil (contact@scil.coop)
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tryton.client.tools;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Memory cache of rec_name by model name and id, to avoid reading the
+ * same relationnal records for each chunk of data. The least recently used
+ * entries are dropped when it is full. */
+public class RecNameCache {
+
+    /** Key of an entry */
+    private static class Key {
+        private String className;
+        private int id;
+        public Key(String className, int id) {
+            this.className = className;
+            this.id = id;
+        }
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key
+                && ((Key) o).id == this.id
+                && ((Key) o).className.equals(this.className);
+        }
+        @Override
+        public int hashCode() {
+            return this.className.hashCode() * 31 + this.id;
+        }
+    }
+
+    private Map<Key, String> names;
+    private int hits;
+    private int misses;
+
+    public RecNameCache(final int maxSize) {
+        this.names = new LinkedHashMap<Key, String>(maxSize / 4, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> e) {
+                return this.size() > maxSize;
+            }
+        };
+    }
+
+    /** Get the rec_name of a record, null if it is not cached. */
+    public synchronized String get(String className, int id) {
+        String name = this.names.get(new Key(className, id));
+        if (name == null) {
+            this.misses++;
+        } else {
+            this.hits++;
+        }
+        return name;
+    }
+
+    public synchronized void put(String className, int id, String name) {
+        if (name != null) {
+            this.names.put(new Key(className, id), name);
+        }
+    }
+
+    /** Forget a record, when it is edited or deleted. */
+    public synchronized void remove(String className, int id) {
+        this.names.remove(new Key(className, id));
+    }
+
+    /** Empty the cache and reset the counters. */
+    public synchronized void clear() {
+        this.names.clear();
+        this.hits = 0;
+        this.misses = 0;
+    }
+
+    public synchronized int getHits() {
+        return this.hits;
+    }
+
+    public synchronized int getMisses() {
+        return this.misses;
+    }
+
+    public synchronized int size() {
+        return this.names.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "rec_name cache: " + this.names.size() + " entries, "
+            + this.hits + " hits, " + this.misses + " misses";
+    }
+}
@@ -18,37 +18,174 @@
 package org.tryton.client.tools;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 import com.larvalabs.svgandroid.SVG;
 import com.larvalabs.svgandroid.SVGParser;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-/** Factory to create drawables from SVG source and optimize the process. */
+import org.tryton.client.R;
+
+/** Factory to create drawables from SVG source and optimize the process.
+ * Each icon is parsed once and rasterised at the icon size of the screen
+ * density. The bitmaps are kept in memory up to MAX_MEMORY bytes, least
+ * recently used first out, and saved as png in the cache directory so that
+ * they are not parsed again on the next start. Files are named by icon
+ * name, source hash and size, a changed source gets a new file. */
 public class SVGFactory {
 
-    private static final Map<String, Drawable> cache = new HashMap<String, Drawable>();
+    private static final int MAX_MEMORY = 512 * 1024;
+    private static final String DIR = "icons";
+
+    private static final Map<String, Bitmap> cache =
+        new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+    private static int cacheSize = 0;
+    /** Source of the icons from resources, to get them without reading. */
+    private static final Map<Integer, String> resSources =
+        new HashMap<Integer, String>();
+
+    private static int byteSize(Bitmap b) {
+        return b.getRowBytes() * b.getHeight();
+    }
+
+    private static Bitmap getCached(String key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    private static void putCached(String key, Bitmap b) {
+        synchronized (cache) {
+            Bitmap old = cache.put(key, b);
+            if (old != null) {
+                cacheSize -= byteSize(old);
+            }
+            cacheSize += byteSize(b);
+            // Drop the least recently used, keep at least the new one
+            Iterator<Bitmap> it = cache.values().iterator();
+            while (cacheSize > MAX_MEMORY && cache.size() > 1) {
+                cacheSize -= byteSize(it.next());
+                it.remove();
+            }
+        }
+    }
+
+    /** Get the icon name as a file name prefix. Other characters than
+     * letters, digits and '.' are written as '-' and their hex code, so
+     * that each name gives its own prefix. '_' is kept as separator. */
+    private static String fileName(String name) {
+        StringBuilder b = new StringBuilder(name.length() + 1);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '.') {
+                b.append(c);
+            } else {
+                String hex = Integer.toHexString(c);
+                b.append('-');
+                for (int j = hex.length(); j < 4; j++) {
+                    b.append('0');
+                }
+                b.append(hex);
+            }
+        }
+        return b.append('_').toString();
+    }
+
+    private static Bitmap rasterise(String svgSource, int size) {
+        SVG svg = SVGParser.getSVGFromString(svgSource);
+        Bitmap b = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(b);
+        canvas.drawPicture(svg.getPicture(), new Rect(0, 0, size, size));
+        return b;
+    }
+
+    /** Save an icon in background, replacing the files of the previous
+     * sources of the same icon at the same size. */
+    private static void save(final File dir, final String name,
+                             final String prefix, final String suffix,
+                             final String file, final Bitmap b) {
+        CallExecutor.submit("saveIcon", new Runnable() {
+                public void run() {
+                    if (!dir.isDirectory() && !dir.mkdirs()) {
+                        return;
+                    }
+                    for (String f : dir.list()) {
+                        if (f.startsWith(prefix) && f.endsWith(suffix)
+                            && f.indexOf('_', prefix.length())
+                               == f.length() - suffix.length()
+                            && !f.equals(file)) {
+                            new File(dir, f).delete();
+                        }
+                    }
+                    File tmp = new File(dir, file + ".tmp");
+                    try {
+                        FileOutputStream out = new FileOutputStream(tmp);
+                        try {
+                            b.compress(Bitmap.CompressFormat.PNG, 100, out);
+                        } finally {
+                            out.close();
+                        }
+                        tmp.renameTo(new File(dir, file));
+                    } catch (IOException e) {
+                        Log.w("Tryton", "Unable to save icon " + name, e);
+                        tmp.delete();
+                    }
+                }
+            }, true);
+    }
 
-    public static Drawable getDrawable(String name, String svgSource) {
-        if (cache.get(name) != null) {
-            return cache.get(name);
-        } else {
-            SVG svg = SVGParser.getSVGFromString(svgSource);
-            Drawable d = svg.createPictureDrawable();
-            cache.put(name, d);
-            return d;
+    /** Get the bitmap of an icon, from memory, from the disk cache
+     * or parsed and rasterised. */
+    private static Bitmap getBitmap(String name, String svgSource,
+                                    Context ctx) {
+        int size = ctx.getResources().getDimensionPixelSize(R.dimen.icon_size);
+        String prefix = fileName(name);
+        String suffix = "_" + size + ".png";
+        String file = prefix + Integer.toHexString(svgSource.hashCode())
+            + suffix;
+        Bitmap b = getCached(file);
+        if (b != null) {
+            return b;
+        }
+        File dir = new File(ctx.getCacheDir(), DIR);
+        File f = new File(dir, file);
+        if (f.exists()) {
+            b = BitmapFactory.decodeFile(f.getPath());
         }
+        if (b == null) {
+            b = rasterise(svgSource, size);
+            save(dir, name, prefix, suffix, file, b);
+        }
+        putCached(file, b);
+        return b;
+    }
+
+    public static Drawable getDrawable(String name, String svgSource,
+                                       Context ctx) {
+        return new BitmapDrawable(ctx.getResources(),
+                                  getBitmap(name, svgSource, ctx));
     }
 
     public static Drawable getDrawable(String name, int resId, Context ctx) {
-        if (cache.get(name) != null) {
-            return cache.get(name);
+        String source = resSources.get(resId);
+        if (source != null) {
+            return getDrawable(name, source, ctx);
         }
         try {
             InputStream stream = ctx.getResources().openRawResource(resId);
@@ -60,13 +197,14 @@ public class SVGFactory {
                 writer.write(buffer, 0, read);
                 read = reader.read(buffer, 0, 1024);
             }
-            String source = writer.toString();
+            source = writer.toString();
             writer.close();
             reader.close();
-            return getDrawable(name, source);
+            resSources.put(resId, source);
+            return getDrawable(name, source, ctx);
         } catch (IOException e) {
             Log.e("Tryton", "Resource error on " + name, e);
             return null;
         }
     }
-}
\ No newline at end of file
+}
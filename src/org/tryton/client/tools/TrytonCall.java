@@ -20,15 +20,23 @@ package org.tryton.client.tools;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
+import android.util.Log;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Future;
 import org.alexd.jsonrpc.JSONRPCClient;
+import org.alexd.jsonrpc.JSONRPCBatch;
 import org.alexd.jsonrpc.JSONRPCException;
 import org.alexd.jsonrpc.JSONRPCParams;
+import org.alexd.jsonrpc.JSONStreamReader;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -71,8 +79,14 @@ public class TrytonCall {
     public static final int CALL_DELETE_NOK = -11;
     public static final int CALL_VIEW_OK = 11;
     public static final int CALL_VIEW_NOK = -12;
+    public static final int CALL_SYNCSTAMP_OK = 12;
+    public static final int CALL_SYNCSTAMP_NOK = -13;
+    public static final int CALL_SYNC_OK = 13;
+    public static final int CALL_SYNC_NOK = -14;
 
     public static final int CHUNK_SIZE = 150;
+    /** Maximum time to wait for the relationnal names of a chunk. */
+    private static final int RELATIONNAL_DEADLINE = 40000;
     
     private static JSONRPCClient c;
     private static final JSONRPCParams.Versions version =
@@ -83,6 +97,10 @@ public class TrytonCall {
     private static int callSequence = 1;
     private static Map<Integer, Handler> handlers = new HashMap<Integer, Handler>();
     private static Map<Integer, Boolean> suspended = new HashMap<Integer, Boolean>();
+    /** Names of the relationnal records read during the session. */
+    private static RecNameCache recNames = new RecNameCache(2000);
+    /** Tasks of the running or queued calls, see CallExecutor. */
+    private static Map<Integer, Future<?>> tasks = new HashMap<Integer, Future<?>>();
 
     public static boolean setup(boolean ssl, String host, String port,
                                 String database) {
@@ -102,14 +120,43 @@ public class TrytonCall {
         url += ":" + port;
         url += "/" + database;
         c = JSONRPCClient.create(url, TrytonCall.version);
+        recNames.clear();
         c.setConnectionTimeout(timeout);
         c.setSoTimeout(soTimeout);
         return true;
     }
 
+    /** Get the cache of relationnal names, to check its hits and misses. */
+    public static RecNameCache getRecNameCache() {
+        return recNames;
+    }
+
     public static void cancel(int callId) {
         handlers.remove(callId);
         suspended.remove(callId);
+        Future<?> task;
+        synchronized (tasks) {
+            task = tasks.remove(callId);
+        }
+        CallExecutor.cancel(task);
+    }
+    /** Queue a call in CallExecutor and keep its task to be able to cancel
+     * it while it is still waiting. */
+    private static void start(final int callId, String callName,
+                              final Runnable r) {
+        synchronized (tasks) {
+            tasks.put(callId, CallExecutor.submit(callName, new Runnable() {
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            synchronized (tasks) {
+                                tasks.remove(callId);
+                            }
+                        }
+                    }
+                }));
+        }
     }
     public static void update(int callId, Handler h) {
         if (handlers.containsKey(callId)) {
@@ -196,7 +243,7 @@ public class TrytonCall {
         if (c == null) {
             return false;
         }
-        new Thread() {
+        CallExecutor.submit("serverVersion", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 try {
@@ -219,7 +266,7 @@ public class TrytonCall {
                 }
                 m.sendToTarget();
             }
-        }.start();
+        });
         return true;
     }
 
@@ -234,7 +281,7 @@ public class TrytonCall {
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "login", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 try {
@@ -264,7 +311,7 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
         return callId;
     }
 
@@ -279,14 +326,17 @@ public class TrytonCall {
         if (c == null) {
             return false;
         }
-        new Thread() {
+        // Names are cached for the session only
+        Log.d("Tryton", recNames.toString());
+        recNames.clear();
+        CallExecutor.submit("logout", new Runnable() {
             public void run() {
                 try {
                     Object resp = c.call("common.db.logout", userId, cookie);
                 } catch (Exception e) {
                 }
             }
-        }.start();
+        });
         return true;
     }
 
@@ -297,7 +347,7 @@ public class TrytonCall {
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "getPreferences", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 try {
@@ -327,7 +377,7 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
         return callId;
     }
 
@@ -381,6 +431,84 @@ public class TrytonCall {
         }
     }
 
+    /** Converts the result of a read call directly to models while
+     * it is received. */
+    private static class ModelsReader implements JSONRPCClient.ResultReader {
+        private String className;
+        public ModelsReader(String className) {
+            this.className = className;
+        }
+        public Object read(JSONStreamReader reader)
+            throws IOException, JSONException {
+            List<Model> models = new ArrayList<Model>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                models.add(new Model(this.className, reader.readObject()));
+            }
+            reader.endArray();
+            return models;
+        }
+    }
+
+    /** Read models from ids. The response is decoded record by record
+     * instead of building the whole JSON tree first. Returns null if the
+     * response is not the expected one. */
+    @SuppressWarnings("unchecked")
+    private static List<Model> readModels(int userId, String cookie,
+                                          Preferences prefs, String className,
+                                          List<String> fields, JSONArray ids)
+        throws JSONRPCException {
+        if (c == null) {
+            return null;
+        }
+        if (ids.length() == 0) {
+            // No data requested
+            return new ArrayList<Model>();
+        }
+        JSONArray jsFields = new JSONArray();
+        if (fields != null) {
+            for (String field : fields) {
+                jsFields.put(field);
+            }
+        }
+        return (List<Model>) c.callStreaming("model." + className + ".read",
+                                             new ModelsReader(className),
+                                             userId, cookie, ids, jsFields,
+                                             prefs.json());
+    }
+
+    private static List<Model> readModels(int userId, String cookie,
+                                          Preferences prefs, String className,
+                                          List<String> fields,
+                                          List<Integer> ids)
+        throws JSONRPCException {
+        JSONArray jsIds = new JSONArray();
+        for (int id : ids) {
+            jsIds.put(id);
+        }
+        return readModels(userId, cookie, prefs, className, fields, jsIds);
+    }
+
+    /** Search and read models, see readModels. */
+    private static List<Model> searchModels(int userId, String cookie,
+                                            Preferences prefs,
+                                            String className,
+                                            List<String> fields,
+                                            int offset, int count)
+        throws JSONRPCException {
+        if (c == null) {
+            return null;
+        }
+        Object resp = c.call("model." + className + ".search", userId, cookie,
+                             new JSONArray(), offset, count, JSONObject.NULL,
+                             prefs.json());
+        if (resp instanceof JSONArray) {
+            return readModels(userId, cookie, prefs, className, fields,
+                              (JSONArray) resp);
+        }
+        return null;
+    }
+
     /** Get data from ids */
     private static JSONArray read(int userId, String cookie,
                                   Preferences prefs, String model,
@@ -416,7 +544,7 @@ public class TrytonCall {
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "getMenus", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 try {
@@ -551,7 +679,7 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
         return callId;
     }
 
@@ -608,7 +736,7 @@ public class TrytonCall {
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "getView", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 try {
@@ -629,7 +757,7 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
         return callId;
     }
 
@@ -646,7 +774,7 @@ public class TrytonCall {
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "getViews", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 JSONArray action = new JSONArray();
@@ -723,7 +851,7 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
         return callId;
     }
 
@@ -736,7 +864,7 @@ public class TrytonCall {
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "getRelFields", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 List<RelField> relFields = new ArrayList<RelField>();
@@ -773,110 +901,176 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
         return callId;
     }
     
-    /** Set data with only id and rec_name to a list of models in fields that
-     * requires id. It also convert false id to null for consistency. */
-    private static void getRelationnals(int userId, String cookie,
-                                        Preferences prefs,
-                                        List<Model> models, RelField relField) {
-        if (models.size() == 0) {
-            return;
+    /** The relationnal records required by a field of a list of models. */
+    private static class RelRequest {
+        private RelField field;
+        /** The models that reference each id, ids are in reading order */
+        private IdMap<List<Model>> whoWants;
+        /** Index of the read in the batch */
+        private int index;
+        public RelRequest(RelField field, int expectedIds) {
+            this.field = field;
+            this.whoWants = new IdMap<List<Model>>(expectedIds);
+        }
+        public boolean isToOne() {
+            String type = this.field.getType();
+            return type.equals("many2one") || type.equals("one2one");
+        }
+        /** Register a model as requesting an id */
+        public void add(int id, Model m) {
+            List<Model> models = this.whoWants.get(id);
+            if (models == null) {
+                models = new ArrayList<Model>(1);
+                this.whoWants.put(id, models);
+            }
+            models.add(m);
         }
+    }
+
+    /** Collect the ids of a relationnal field from a list of models.
+     * It also convert false id to null for consistency. */
+    private static RelRequest collectRelationnals(List<Model> models,
+                                                  RelField relField) {
         String fieldName = relField.getFieldName();
-        String relModelName = relField.getRelModel();
         String type = relField.getType();
-        Map <Integer, List<Model>> whoWants = new HashMap<Integer,
-            List<Model>>();
-        List<Integer> ids = new ArrayList<Integer>();
-        if (type.equals("many2one") || type.equals("one2one")) {
-            for (Model m : models) {
-                // Get the id of the relationnal data
-                Object value = m.get(fieldName);
-                if (value == Boolean.FALSE) {
-                    m.set(fieldName, null); // Convert false to null
-                }
-                if (value == null || value == Boolean.FALSE) {
-                    // This one is not defined
-                    continue;
-                }
-                
-                int id = (Integer) value;
-                if (!ids.contains(id)) {
-                    ids.add(id);
-                }
-                // Register the model as requesting this id
-                if (whoWants.get(id) == null) {
-                    whoWants.put(id, new ArrayList<Model>());
-                }
-                whoWants.get(id).add(m);
+        boolean toOne = type.equals("many2one") || type.equals("one2one");
+        boolean toMany = type.equals("one2many") || type.equals("many2many");
+        RelRequest request = new RelRequest(relField, models.size());
+        if (!toOne && !toMany) {
+            return request;
+        }
+        for (Model m : models) {
+            // Get the id(s) of the relationnal data
+            Object value = m.get(fieldName);
+            if (value == Boolean.FALSE) {
+                m.set(fieldName, null); // Convert false to null
+            }
+            if (value == null || value == Boolean.FALSE) {
+                // This one is not defined
+                continue;
             }
-        } else if (type.equals("one2many") || type.equals("many2many")) {
-            for (Model m : models) {
-                // Get the ids of the relationnal data
-                Object value = m.get(fieldName);
-                if (value == Boolean.FALSE) {
-                    m.set(fieldName, null); // Convert false to null
+            if (toOne) {
+                request.add((Integer) value, m);
+            } else {
+                @SuppressWarnings("unchecked")
+                List<Object> mIds = (List<Object>) value;
+                for (Object id : mIds) {
+                    if (id != null) {
+                        request.add((Integer) id, m);
+                    }
                 }
-                if (value == null || value == Boolean.FALSE) {
-                    // This one is not defined
-                    continue;
+            }
+        }
+        return request;
+    }
+
+    /** Set a record read for a relationnal field to the models
+     * that requires it. */
+    private static void applyRelationnal(RelRequest request, Model model) {
+        String fieldName = request.field.getFieldName();
+        int id = (Integer) model.get("id");
+        // Who wants this one? Take it!
+        List<Model> parents = request.whoWants.get(id);
+        if (parents == null) {
+            return;
+        }
+        for (Model parent : parents) {
+            if (request.isToOne()) {
+                parent.set2One(fieldName, model);
+            } else {
+                parent.add2Many(fieldName, model);
+            }
+        }
+    }
+
+    /** Set data with only id and rec_name to a list of models in fields that
+     * requires id. It also convert false id to null for consistency.
+     * The reads of all fields are sent in one batch request, or
+     * concurrently if the server doesn't accept batches.
+     * The names read before are used only if cachedNames is true,
+     * otherwise they are all read again and update the cache. */
+    @SuppressWarnings("unchecked")
+    private static void getRelationnals(int userId, String cookie,
+                                        Preferences prefs,
+                                        List<Model> models,
+                                        List<RelField> relFields,
+                                        boolean cachedNames) {
+        if (models.size() == 0 || c == null) {
+            return;
+        }
+        JSONArray jsFields = new JSONArray();
+        jsFields.put("id");
+        jsFields.put("rec_name");
+        // Collect the ids for all fields and prepare the reads
+        List<RelRequest> requests = new ArrayList<RelRequest>();
+        JSONRPCBatch batch = new JSONRPCBatch();
+        // When the server doesn't accept batches, read all fields at once
+        batch.setParallel(CallExecutor.getRelationnalExecutor(),
+                          RELATIONNAL_DEADLINE);
+        for (RelField relField : relFields) {
+            RelRequest request = collectRelationnals(models, relField);
+            IdMap<List<Model>> ids = request.whoWants;
+            String relModelName = relField.getRelModel();
+            // Use the names already read for many2one, x2many are read
+            // as a whole to keep their order
+            boolean cached = cachedNames && request.isToOne();
+            JSONArray jsIds = new JSONArray();
+            for (int i = 0; i < ids.size(); i++) {
+                int id = ids.keyAt(i);
+                String name = null;
+                if (cached) {
+                    name = recNames.get(relModelName, id);
                 }
-                @SuppressWarnings("unchecked")
-                List<Integer> mIds = (List<Integer>) value;
-                JSONArray jsIds = new JSONArray();
-                for (Integer id : mIds) {
+                if (name != null) {
+                    Model rel = new Model(relModelName);
+                    rel.set("id", id);
+                    rel.set("rec_name", name);
+                    applyRelationnal(request, rel);
+                } else {
                     jsIds.put(id);
                 }
-                for (int i = 0; i < jsIds.length(); i++) {
-                    try {
-                        int id = jsIds.getInt(i);
-                        if (!ids.contains(id)) {
-                            ids.add(id);
-                        }
-                        // Register the model as requesting this id
-                        if (whoWants.get(id) == null) {
-                            whoWants.put(id, new ArrayList<Model>());
-                        }
-                        whoWants.get(id).add(m);
-                    } catch (JSONException e) {
-                        // TODO: json exception
-                        e.printStackTrace();
-                    }
-                }
             }
+            if (jsIds.length() == 0) {
+                continue;
+            }
+            request.index = batch.add("model." + relModelName + ".read",
+                                      new ModelsReader(relModelName),
+                                      userId, cookie, jsIds, jsFields,
+                                      prefs.json());
+            requests.add(request);
+        }
+        if (batch.size() == 0) {
+            return;
         }
         // Get all relationnal data
         try {
-            List<String> fields = new ArrayList<String>();
-            fields.add("id");
-            fields.add("rec_name");
-            JSONArray rels = read(userId, cookie, prefs,
-                                  "model." + relModelName,
-                                  fields, ids);
-            for (int i = 0; i < rels.length(); i++) {
-                try {
-                    JSONObject oModel = rels.getJSONObject(i);
-                    Model model = new Model(relModelName, oModel);
-                    int id = (Integer) model.get("id");
-                    // Who wants this one? Take it!
-                    for (Model parent : whoWants.get(id)) {
-                        if (type.equals("many2one") || type.equals("one2one")) {
-                            parent.set2One(fieldName, model);
-                        } else {
-                            parent.add2Many(fieldName, model);
-                        }
+            c.callBatch(batch);
+        } catch (JSONRPCException e) {
+            Log.w("Tryton", "Unable to read relationnal names", e);
+            return;
+        }
+        for (RelRequest request : requests) {
+            try {
+                List<Model> rels = (List<Model>) batch.getResult(request.index);
+                if (rels == null) {
+                    continue;
+                }
+                String relModelName = request.field.getRelModel();
+                for (Model rel : rels) {
+                    applyRelationnal(request, rel);
+                    if (request.isToOne()) {
+                        recNames.put(relModelName, (Integer) rel.get("id"),
+                                     rel.getString("rec_name"));
                     }
-                } catch (JSONException e) {
-                    // TODO json error
-                    e.printStackTrace();
                 }
+            } catch (JSONRPCException e) {
+                Log.w("Tryton", "Unable to read relationnal names for "
+                      + request.field.getFieldName(), e);
             }
-        } catch (Exception e) {
-            // TODO rpc or json error
-            e.printStackTrace();
         }
     }
 
@@ -889,7 +1083,7 @@ public class TrytonCall {
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "getDataCount", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 try {
@@ -909,7 +1103,7 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
         return callId;
     }
 
@@ -923,23 +1117,25 @@ public class TrytonCall {
         ModelViewTypes dummy = new ModelViewTypes(view.getModelName());
         dummy.putView(view.getType(), view);
         return getData(userId, cookie, prefs, modelName, offset, count,
-                       relFields, dummy, h);
+                       relFields, dummy, false, h);
     }
 
-    /** Get some data for a model */
+    /** Get some data for a model. The relationnal names are all read
+     * again on forceRefresh. */
     public static int getData(final int userId, final String cookie,
                               final Preferences prefs,
                               final String modelName,
                               final int offset, final int count,
                               final List<RelField> relFields,
                               final ModelViewTypes views,
+                              final boolean forceRefresh,
                               final Handler h) {
         if (c == null) {
             return -1;
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "getData", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 // Fields list by name
@@ -952,24 +1148,18 @@ public class TrytonCall {
                 }
                 if (!fields.contains("id")) { fields.add("id"); }
                 if (!fields.contains("rec_name")) { fields.add("rec_name"); }
-                // Data list
-                List<Model> allData = new ArrayList<Model>();
                 try {
-                    // Search the data and add them to a list
-                    JSONArray result = search(userId, cookie, prefs,
-                                              "model." + modelName,
-                                              null, fields, offset, count);
-                    for (int i = 0; i < result.length(); i++) {
-                        JSONObject jsData = result.getJSONObject(i);
-                        Model data = new Model(modelName, jsData);
-                        allData.add(data);
+                    // Search the data and get them as a list
+                    List<Model> allData = searchModels(userId, cookie, prefs,
+                                                       modelName, fields,
+                                                       offset, count);
+                    if (allData == null) {
+                        throw new JSONException("Incorrect response");
                     }
                     if (isCanceled(callId)) { return; }
                     // Check for relational fields and load them
-                    for (RelField rel : relFields) {
-                        getRelationnals(userId, cookie, prefs, allData,
-                                        rel);
-                    }
+                    getRelationnals(userId, cookie, prefs, allData,
+                                    relFields, !forceRefresh);
                     // Send back the list to the handler
                     m.what = CALL_DATA_OK;
                     m.obj = new Object[]{modelName, allData};
@@ -987,7 +1177,7 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
         return callId;
     }
 
@@ -998,13 +1188,14 @@ public class TrytonCall {
                               final List<Integer> ids,
                               final List<RelField> relFields,
                               final ModelViewTypes views,
+                              final boolean forceRefresh,
                               final Handler h) {
         if (c == null) {
             return -1;
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "getData", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 // Get required fields from views
@@ -1016,24 +1207,17 @@ public class TrytonCall {
                 }
                 if (!fields.contains("id")) { fields.add("id"); }
                 if (!fields.contains("rec_name")) { fields.add("rec_name"); }
-                // Data list
-                List<Model> allData = new ArrayList<Model>();
                 try {
-                    // Search the data and add them to a list
-                    JSONArray result = read(userId, cookie, prefs,
-                                              "model." + modelName,
-                                              fields, ids);
-                    for (int i = 0; i < result.length(); i++) {
-                        JSONObject jsData = result.getJSONObject(i);
-                        Model data = new Model(modelName, jsData);
-                        allData.add(data);
+                    // Read the data and get them as a list
+                    List<Model> allData = readModels(userId, cookie, prefs,
+                                                     modelName, fields, ids);
+                    if (allData == null) {
+                        throw new JSONException("Incorrect response");
                     }
                     if (isCanceled(callId)) { return; }
                     // Check for relational fields and load them
-                    for (RelField rel : relFields) {
-                        getRelationnals(userId, cookie, prefs, allData,
-                                        rel);
-                    }
+                    getRelationnals(userId, cookie, prefs, allData,
+                                    relFields, !forceRefresh);
                     // Send back the list to the handler
                     m.what = CALL_DATA_OK;
                     m.obj = new Object[]{modelName, allData};
@@ -1051,10 +1235,296 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
+        return callId;
+    }
+
+
+    /** Time removed from the sync stamp when searching for changes
+     * to catch the records written by transactions still running
+     * when the stamp was read (in seconds). */
+    private static final int SYNC_MARGIN = 300;
+
+    /** Convert a datetime received from the server to a sortable string
+     * (yyyy-mm-dd hh:mm:ss.uuuuuu) or null if it is not set. */
+    private static String toSyncStamp(Object value) {
+        if (!(value instanceof Map)) {
+            return null;
+        }
+        Map<?, ?> datetime = (Map<?, ?>) value;
+        int[] dt = FieldsConvertion.dateTimeToIntA(datetime);
+        int second = 0;
+        int microsecond = 0;
+        if (datetime.get("second") instanceof Integer) {
+            second = (Integer) datetime.get("second");
+        }
+        if (datetime.get("microsecond") instanceof Integer) {
+            microsecond = (Integer) datetime.get("microsecond");
+        }
+        return String.format("%04d-%02d-%02d %02d:%02d:%02d.%06d",
+                             dt[0], dt[1], dt[2], dt[3], dt[4],
+                             second, microsecond);
+    }
+
+    /** Convert a sync stamp back to a datetime to use in a domain,
+     * SYNC_MARGIN earlier. */
+    private static JSONObject fromSyncStamp(String stamp)
+        throws JSONException {
+        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        cal.clear();
+        cal.set(Integer.parseInt(stamp.substring(0, 4)),
+                Integer.parseInt(stamp.substring(5, 7)) - 1,
+                Integer.parseInt(stamp.substring(8, 10)),
+                Integer.parseInt(stamp.substring(11, 13)),
+                Integer.parseInt(stamp.substring(14, 16)),
+                Integer.parseInt(stamp.substring(17, 19)));
+        cal.add(Calendar.SECOND, -SYNC_MARGIN);
+        JSONObject datetime = new JSONObject();
+        datetime.put("__class__", "datetime");
+        datetime.put("year", cal.get(Calendar.YEAR));
+        datetime.put("month", cal.get(Calendar.MONTH) + 1);
+        datetime.put("day", cal.get(Calendar.DAY_OF_MONTH));
+        datetime.put("hour", cal.get(Calendar.HOUR_OF_DAY));
+        datetime.put("minute", cal.get(Calendar.MINUTE));
+        datetime.put("second", cal.get(Calendar.SECOND));
+        datetime.put("microsecond", 0);
+        return datetime;
+    }
+
+    /** Build a one clause domain [[field, operator, value]]. */
+    private static JSONArray domain(String field, String operator,
+                                    Object value) {
+        JSONArray clause = new JSONArray();
+        clause.put(field);
+        clause.put(operator);
+        clause.put(value);
+        JSONArray domain = new JSONArray();
+        domain.put(clause);
+        return domain;
+    }
+
+    /** Search ids matching a domain. Use count -1 to get them all and
+     * a null order for the default one. */
+    private static JSONArray searchIds(int userId, String cookie,
+                                       Preferences prefs, String modelName,
+                                       JSONArray domain, int count,
+                                       String orderField)
+        throws JSONRPCException {
+        Object order = JSONObject.NULL;
+        if (orderField != null) {
+            JSONArray jsOrder = new JSONArray();
+            JSONArray fieldOrder = new JSONArray();
+            fieldOrder.put(orderField);
+            fieldOrder.put("DESC");
+            jsOrder.put(fieldOrder);
+            order = jsOrder;
+        }
+        Object limit = JSONObject.NULL;
+        if (count != -1) {
+            limit = count;
+        }
+        Object resp = c.call("model." + modelName + ".search", userId, cookie,
+                             domain, 0, limit, order, prefs.json());
+        if (resp instanceof JSONArray) {
+            return (JSONArray) resp;
+        }
+        throw new JSONRPCException("Incorrect response");
+    }
+
+    /** Get the date of the last change on the server for a model,
+     * as a sync stamp. Returns null if there is no record. */
+    private static String readSyncStamp(int userId, String cookie,
+                                        Preferences prefs, String modelName)
+        throws JSONRPCException {
+        // write_date is null until the first write, check creations too
+        JSONArray ids = searchIds(userId, cookie, prefs, modelName,
+                                  domain("write_date", "!=", JSONObject.NULL),
+                                  1, "write_date");
+        JSONArray created = searchIds(userId, cookie, prefs, modelName,
+                                      new JSONArray(), 1, "create_date");
+        for (int i = 0; i < created.length(); i++) {
+            ids.put(created.opt(i));
+        }
+        List<String> fields = new ArrayList<String>();
+        fields.add("write_date");
+        fields.add("create_date");
+        List<Model> last = readModels(userId, cookie, prefs, modelName,
+                                      fields, ids);
+        String stamp = null;
+        for (Model m : last) {
+            for (String field : fields) {
+                String date = toSyncStamp(m.get(field));
+                if (date != null
+                    && (stamp == null || date.compareTo(stamp) > 0)) {
+                    stamp = date;
+                }
+            }
+        }
+        return stamp;
+    }
+
+    /** Get the sync stamp of a model before loading all of its records.
+     * See syncData. */
+    public static int getSyncStamp(final int userId, final String cookie,
+                                   final Preferences prefs,
+                                   final String modelName,
+                                   final Handler h) {
+        if (c == null) {
+            return -1;
+        }
+        final int callId = callSequence++;
+        handlers.put(callId, h);
+        start(callId, "getSyncStamp", new Runnable() {
+            public void run() {
+                Message m = h.obtainMessage();
+                try {
+                    String stamp = readSyncStamp(userId, cookie, prefs,
+                                                 modelName);
+                    m.what = CALL_SYNCSTAMP_OK;
+                    m.obj = new Object[]{modelName, stamp};
+                } catch (JSONRPCException e) {
+                    if (isNotLogged(e)) {
+                        m.what = NOT_LOGGED;
+                        m.obj = CALL_SYNCSTAMP_NOK;
+                    } else {
+                        m.what = CALL_SYNCSTAMP_NOK;
+                        m.obj = e;
+                    }
+                }
+                sendMessage(callId, m);
+            }
+        });
         return callId;
     }
 
+    /** Get the changes of a model since a sync stamp. Only the records
+     * created or written since then are read. Deleted records are looked
+     * for only when the count doesn't match the known ids and new ones.
+     * The response is {modelName, changed models, deleted ids, count,
+     * new stamp}. */
+    public static int syncData(final int userId, final String cookie,
+                               final Preferences prefs,
+                               final String modelName,
+                               final String stamp,
+                               final List<Integer> knownIds,
+                               final List<RelField> relFields,
+                               final ModelViewTypes views,
+                               final Handler h) {
+        if (c == null) {
+            return -1;
+        }
+        final int callId = callSequence++;
+        handlers.put(callId, h);
+        start(callId, "syncData", new Runnable() {
+            public void run() {
+                Message m = h.obtainMessage();
+                // Get required fields from views
+                List<String> fields = null;
+                if (views != null) {
+                    fields = views.getAllFieldNames();
+                } else {
+                    fields = new ArrayList<String>();
+                }
+                if (!fields.contains("id")) { fields.add("id"); }
+                if (!fields.contains("rec_name")) { fields.add("rec_name"); }
+                try {
+                    // Take the new stamp first to not miss changes
+                    // made while syncing
+                    String newStamp = readSyncStamp(userId, cookie, prefs,
+                                                    modelName);
+                    JSONObject since = fromSyncStamp(stamp);
+                    JSONArray changes = new JSONArray();
+                    changes.put("OR");
+                    changes.put(domain("write_date", ">=", since).get(0));
+                    changes.put(domain("create_date", ">=", since).get(0));
+                    JSONArray changedIds = searchIds(userId, cookie, prefs,
+                                                     modelName, changes, -1,
+                                                     null);
+                    int count = (Integer) c.call("model." + modelName
+                                                 + ".search_count",
+                                                 userId, cookie,
+                                                 new JSONArray(),
+                                                 prefs.json());
+                    if (isCanceled(callId)) { return; }
+                    // Deletions are the known ids not there anymore
+                    IdMap<Boolean> known = new IdMap<Boolean>(knownIds.size());
+                    for (int id : knownIds) {
+                        known.put(id, Boolean.TRUE);
+                    }
+                    int created = 0;
+                    for (int i = 0; i < changedIds.length(); i++) {
+                        if (!known.containsKey(changedIds.getInt(i))) {
+                            created++;
+                        }
+                    }
+                    List<Integer> deleted = new ArrayList<Integer>();
+                    if (count != knownIds.size() + created) {
+                        JSONArray allIds = searchIds(userId, cookie, prefs,
+                                                     modelName,
+                                                     new JSONArray(), -1,
+                                                     null);
+                        IdMap<Boolean> server =
+                            new IdMap<Boolean>(allIds.length());
+                        for (int i = 0; i < allIds.length(); i++) {
+                            server.put(allIds.getInt(i), Boolean.TRUE);
+                        }
+                        for (int id : knownIds) {
+                            if (!server.containsKey(id)) {
+                                deleted.add(id);
+                            }
+                        }
+                    }
+                    // Read the changes by chunks
+                    List<Model> changed = new ArrayList<Model>();
+                    for (int start = 0; start < changedIds.length();
+                         start += CHUNK_SIZE) {
+                        JSONArray chunk = new JSONArray();
+                        int end = Math.min(start + CHUNK_SIZE,
+                                           changedIds.length());
+                        for (int i = start; i < end; i++) {
+                            chunk.put(changedIds.get(i));
+                        }
+                        List<Model> data = readModels(userId, cookie, prefs,
+                                                      modelName, fields,
+                                                      chunk);
+                        if (data == null) {
+                            throw new JSONException("Incorrect response");
+                        }
+                        if (isCanceled(callId)) { return; }
+                        // Names may have changed since they were read
+                        getRelationnals(userId, cookie, prefs, data,
+                                        relFields, false);
+                        // Renamed records show their new name in
+                        // the other models
+                        for (Model d : data) {
+                            recNames.put(modelName, (Integer) d.get("id"),
+                                         d.getString("rec_name"));
+                        }
+                        changed.addAll(data);
+                    }
+                    Log.i("Tryton", "Sync " + modelName + " since " + stamp
+                          + ": " + changed.size() + " changed, "
+                          + deleted.size() + " deleted");
+                    m.what = CALL_SYNC_OK;
+                    m.obj = new Object[]{modelName, changed, deleted,
+                                         count, newStamp};
+                } catch (JSONRPCException e) {
+                    if (isNotLogged(e)) {
+                        m.what = NOT_LOGGED;
+                        m.obj = CALL_SYNC_NOK;
+                    } else {
+                        m.what = CALL_SYNC_NOK;
+                        m.obj = e;
+                    }
+                } catch (Exception e) {
+                    m.what = CALL_SYNC_NOK;
+                    m.obj = e;
+                }
+                sendMessage(callId, m);
+            }
+        });
+        return callId;
+    }
 
     /** Get data for relationnal pickup */
     public static int getRelData(final int userId, final String cookie,
@@ -1067,7 +1537,7 @@ public class TrytonCall {
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "getRelData", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 // Data list
@@ -1077,17 +1547,16 @@ public class TrytonCall {
                     int offset = 0;
                     while (true) {
                         if (isCanceled(callId)) { return; }
-                        if (isSuspended(callId)) { this.yield(); }
+                        if (isSuspended(callId)) { Thread.yield(); }
                         // Load a chunk and send it back
-                        JSONArray result = search(userId, cookie, prefs,
-                                                  "model." + modelName,
-                                                  null, null,
-                                                  offset, CHUNK_SIZE);
-                        for (int i = 0; i < result.length(); i++) {
-                            JSONObject jsData = result.getJSONObject(i);
-                            Model data = new Model(modelName, jsData);
-                            dataChunk.add(data);
+                        List<Model> result = searchModels(userId, cookie,
+                                                          prefs, modelName,
+                                                          null, offset,
+                                                          CHUNK_SIZE);
+                        if (result == null) {
+                            throw new JSONException("Incorrect response");
                         }
+                        dataChunk.addAll(result);
                         // Send back the list to the handler
                         m.obj = new Object[]{modelName, dataChunk};
                         if (fullLoad) {
@@ -1123,15 +1592,53 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
         return callId;
     }
 
+    /** Get a record after it is saved. Only the fields of views are
+     * read, and merged in the previous record when updating to keep the
+     * other ones. When views is null nothing is read, the saved record
+     * is given back with its id. Returns null if the response is not
+     * a record. */
+    private static Model readBack(int userId, String cookie,
+                                  Preferences prefs, Model model,
+                                  Model oldModel, int id,
+                                  ModelViewTypes views)
+        throws JSONRPCException, JSONException {
+        String modelName = model.getClassName();
+        Model updmodel = new Model(modelName);
+        if (oldModel != null) {
+            updmodel.merge(oldModel);
+        }
+        if (views == null) {
+            updmodel.merge(model);
+            updmodel.set("id", id);
+            return updmodel;
+        }
+        List<String> fields = views.getAllFieldNames();
+        if (!fields.contains("id")) { fields.add("id"); }
+        if (!fields.contains("rec_name")) { fields.add("rec_name"); }
+        List<Integer> lid = new ArrayList<Integer>();
+        lid.add(id);
+        Object oModel = read(userId, cookie, prefs, "model." + modelName,
+                             fields, lid);
+        if (oModel instanceof JSONArray) {
+            JSONArray jsModels = (JSONArray) oModel;
+            JSONObject jsModel = jsModels.getJSONObject(0);
+            updmodel.merge(new Model(modelName, jsModel));
+            return updmodel;
+        }
+        return null;
+    }
+
     /** Create or update a record. If record has no id it's a creation.
-     * Handler gives back the updated/created record. */
+     * Handler gives back the updated/created record, with the fields
+     * of views read back from the server (see readBack). */
     public static int saveData(final int userId, final String cookie,
                                final Preferences prefs,
                                final Model model, final Model oldModel,
+                               final ModelViewTypes views,
                                final Context ctx,
                                final Handler h) {
         if (c == null) {
@@ -1139,7 +1646,7 @@ public class TrytonCall {
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "saveData", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 Model sendModel = FieldsConvertion.modelToSend(model, oldModel,
@@ -1172,6 +1679,9 @@ public class TrytonCall {
                     if (create) {
                         oResult = c.call(action, userId, cookie, attrs,
                                          prefs.json());
+                    } else if (attrs.length() == 1 && attrs.has("id")) {
+                        // Nothing changed, just read it back
+                        oResult = Boolean.TRUE;
                     } else {
                         JSONArray id = new JSONArray();
                         id.put(model.get("id"));
@@ -1180,41 +1690,20 @@ public class TrytonCall {
                     }
                     if (create && oResult instanceof Integer) {
                         // Create done, get new record
-                        int id = (Integer) oResult;
-                        List<Integer> lid = new ArrayList<Integer>();
-                        lid.add(id);
-                        Object oModel = read(userId, cookie, prefs,
-                                             "model." + modelName,
-                                             null, lid);
-                        if (oModel instanceof JSONArray) {
-                            JSONArray jsModels = (JSONArray) oModel;
-                            JSONObject jsModel = jsModels.getJSONObject(0);
-                            Model updmodel = new Model(modelName, jsModel);
-                            m.what = CALL_SAVE_OK;
-                            m.obj = updmodel;
-                        } else {
-                            m.what = CALL_SAVE_OK;
-                            m.obj = null;
-                        }
+                        m.what = CALL_SAVE_OK;
+                        m.obj = readBack(userId, cookie, prefs, model, null,
+                                         (Integer) oResult, views);
                     } else if (!create &&
                                (oResult == JSONObject.NULL
                                 || oResult instanceof Boolean)) {
                         // Update done, get updated record
-                        List<Integer> lid = new ArrayList<Integer>();
-                        lid.add((Integer)sendModel.get("id"));
-                        Object oModel = read(userId, cookie, prefs,
-                                             "model." + modelName,
-                                             null, lid);
-                        if (oModel instanceof JSONArray) {
-                            JSONArray jsModels = (JSONArray) oModel;
-                            JSONObject jsModel = jsModels.getJSONObject(0);
-                            Model updmodel = new Model(modelName, jsModel);
-                            m.what = CALL_SAVE_OK;
-                            m.obj = updmodel;
-                        } else {
-                            m.what = CALL_SAVE_OK;
-                            m.obj = null;
-                        }
+                        recNames.remove(modelName,
+                                        (Integer) sendModel.get("id"));
+                        m.what = CALL_SAVE_OK;
+                        m.obj = readBack(userId, cookie, prefs, model,
+                                         oldModel,
+                                         (Integer) sendModel.get("id"),
+                                         views);
                     } else {
                         m.what = CALL_SAVE_NOK;
                         m.obj = new Exception("Unknown response type "
@@ -1234,7 +1723,7 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
         return callId;
     }
 
@@ -1257,7 +1746,7 @@ public class TrytonCall {
         }
         final int callId = callSequence++;
         handlers.put(callId, h);
-        new Thread() {
+        start(callId, "deleteData", new Runnable() {
             public void run() {
                 Message m = h.obtainMessage();
                 try {
@@ -1267,6 +1756,9 @@ public class TrytonCall {
                     }
                     Object oResult = c.call("model." + className + ".delete",
                                             userId, cookie, jsIds, prefs.json());
+                    for (Integer id : ids) {
+                        recNames.remove(className, id);
+                    }
                     if (oResult == JSONObject.NULL
                         || oResult instanceof Boolean) {
                         // Delete done
@@ -1290,7 +1782,7 @@ public class TrytonCall {
                 }
                 sendMessage(callId, m);
             }
-        }.start();
+        });
         return callId;
     }
 }
@@ -63,8 +63,9 @@ public class MenuEntryItem extends RelativeLayout {
     public void reuse(MenuEntry menu, Context ctx) {
         this.entry = menu;
         this.label.setText(this.entry.getLabel());
-        if (this.entry.getIcon() != null) {
-            this.icon.setImageDrawable(this.entry.getIcon());
+        Drawable entryIcon = this.entry.getIcon(ctx);
+        if (entryIcon != null) {
+            this.icon.setImageDrawable(entryIcon);
         } else {
             this.setDefaultIcon(ctx);
         }
@@ -75,8 +76,9 @@ public class MenuEntryItem extends RelativeLayout {
         this.entry = menu;
         this.selected = selected;
         this.label.setText(this.entry.getLabel());
-        if (this.entry.getIcon() != null) {
-            this.icon.setImageDrawable(this.entry.getIcon());
+        Drawable entryIcon = this.entry.getIcon(ctx);
+        if (entryIcon != null) {
+            this.icon.setImageDrawable(entryIcon);
         } else {
             this.setDefaultIcon(ctx);
         }
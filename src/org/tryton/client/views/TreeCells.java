@@ -0,0 +1,75 @@
+/*
+    Tryton Android
+    Copyright (C) 2012 SARL SCOP Scil (contact@scil.coop)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package org.tryton.client.views;
+
+import org.tryton.client.data.DataWindow;
+import org.tryton.client.data.Session;
+import org.tryton.client.models.Model;
+import org.tryton.client.models.ModelView;
+import org.tryton.client.tools.TreeViewFactory;
+
+import android.content.Context;
+import java.util.List;
+
+/** Texts of the tree items for a record, one for each field of the view
+ * structure ("label value"), or only the rec_name when there is no view.
+ * The items use them as is instead of formatting the record on each bind.
+ * As a DataWindow.Formatter they are prepared when a page is loaded. */
+public class TreeCells implements DataWindow.Formatter {
+
+    private static final Model REC_NAME = new Model("ir.ui.field");
+    static {
+        REC_NAME.set("name", "rec_name");
+        REC_NAME.set("type", "char");
+    }
+
+    private Context ctx;
+    private ModelView modelView;
+
+    public TreeCells(Context ctx, ModelView modelView) {
+        this.ctx = ctx.getApplicationContext();
+        this.modelView = modelView;
+    }
+
+    public Object format(Model record) {
+        return format(this.modelView, record, this.ctx);
+    }
+
+    public static String[] format(ModelView modelView, Model record,
+                                  Context ctx) {
+        if (modelView == null) {
+            return new String[]{TreeViewFactory.getView(REC_NAME, record,
+                                                        Session.current.prefs,
+                                                        ctx)};
+        }
+        List<Model> structure = modelView.getStructure();
+        String[] cells = new String[structure.size()];
+        for (int i = 0; i < cells.length; i++) {
+            Model field = structure.get(i);
+            String name = (String) field.get("string");
+            if (name == null) {
+                name = (String) field.get("name");
+            }
+            String value = TreeViewFactory.getView(field, record,
+                                                   Session.current.prefs,
+                                                   ctx);
+            cells[i] = name + " " + value;
+        }
+        return cells;
+    }
+}
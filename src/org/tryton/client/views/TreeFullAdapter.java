@@ -18,6 +18,7 @@
 package org.tryton.client.views;
 
 import org.tryton.client.R;
+import org.tryton.client.data.DataWindow;
 import org.tryton.client.models.Model;
 import org.tryton.client.models.ModelView;
 
@@ -67,18 +68,29 @@ public class TreeFullAdapter extends BaseAdapter {
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         Model m = this.data.get(position);
-        if (convertView != null && convertView instanceof TreeFullItem) {
+        String[] cells = this.getCells(position);
+        if (convertView != null && convertView instanceof TreeFullItem
+            && ((TreeFullItem)convertView).getModelView() == this.modelView) {
             // Reusing allows to update a view that goes off-screen to reduce
             // scrolling cpu usage (thus smoothing it).
             TreeFullItem item = (TreeFullItem) convertView;
-            item.reuse(m, parent.getContext());
+            item.reuse(m, cells, parent.getContext());
             return item;
         } else {
             // Not reusing. Create the view from scratch.
             Context ctx = parent.getContext();
-            TreeFullItem item = new TreeFullItem(parent.getContext(),
-                                                 this.modelView, m);
+            TreeFullItem item = new TreeFullItem(ctx, this.modelView, null);
+            item.reuse(m, cells, ctx);
             return item;
         }
     }
+
+    /** Get the texts of a record prepared by TreeCells, if any. */
+    private String[] getCells(int position) {
+        if (this.data instanceof DataWindow) {
+            return (String[]) ((DataWindow) this.data).getFormatted(position);
+        }
+        return null;
+    }
+
 }
\ No newline at end of file
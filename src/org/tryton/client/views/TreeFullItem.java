@@ -18,7 +18,6 @@
 package org.tryton.client.views;
 
 import org.tryton.client.R;
-import org.tryton.client.data.Session;
 import org.tryton.client.models.Model;
 import org.tryton.client.models.ModelView;
 import org.tryton.client.tools.TreeViewFactory;
@@ -37,6 +36,8 @@ public class TreeFullItem extends LinearLayout {
     private ModelView modelView;
     private Model model;
     private List<TextView> values;
+    /** Index in the view structure of the field shown by each value. */
+    private int[] columns;
 
     public TreeFullItem(Context context, ModelView modelView, Model model) {
         super(context);
@@ -45,6 +46,7 @@ public class TreeFullItem extends LinearLayout {
         this.setGravity(Gravity.CENTER_VERTICAL);
         this.modelView = modelView;
         this.values = new ArrayList<TextView>();
+        List<Integer> columns = new ArrayList<Integer>();
         if (this.modelView != null) {
             for (int i = 0; i < this.modelView.getStructure().size(); i++) {
                 Model field = this.modelView.getStructure().get(i);
@@ -52,6 +54,7 @@ public class TreeFullItem extends LinearLayout {
                     TextView t = new TextView(context);
                     this.values.add(t);
                     this.addView(t);
+                    columns.add(i);
                 }
             }
         } else {
@@ -59,40 +62,35 @@ public class TreeFullItem extends LinearLayout {
             TextView t = new TextView(context);
             this.values.add(t);
             this.addView(t);
+            columns.add(0);
+        }
+        this.columns = new int[columns.size()];
+        for (int i = 0; i < this.columns.length; i++) {
+            this.columns[i] = columns.get(i);
         }
         this.reuse(model, context);
     }
 
     public void reuse(Model model, Context ctx) {
+        this.reuse(model, null, ctx);
+    }
+
+    /** Show a record with its texts from TreeCells, they are computed
+     * if cells is null. */
+    public void reuse(Model model, String[] cells, Context ctx) {
         this.model = model;
-        if (this.modelView != null) {
-            List<Model> structure = this.modelView.getStructure();
-            int innerIndex = 0;
-            for (int i = 0; i < structure.size(); i++) {
-                Model field = structure.get(i);
-                if (TreeViewFactory.isFieldView(field)) {
-                    TextView t = this.values.get(innerIndex);
-                    String fieldName = (String) field.get("name");
-                    String name = (String) field.get("string");
-                    if (name == null) {
-                        name = (String) field.get("name");
-                    }
-                    String value = TreeViewFactory.getView(field, this.model,
-                                                           Session.current.prefs,
-                                                           ctx);
-                    t.setText(name + " " + value);
-                    innerIndex++;
-                }
-            } 
-        } else {
-            TextView t = this.values.get(0);
-            Model recName = new Model("ir.ui.field");
-            recName.set("name", "rec_name");
-            recName.set("type", "char");
-            String value = TreeViewFactory.getView(recName, this.model,
-                                                   Session.current.prefs,
-                                                   ctx);
-            t.setText(value);
+        if (this.model == null) {
+            // Not loaded yet
+            for (TextView t : this.values) {
+                t.setText("");
+            }
+            return;
+        }
+        if (cells == null) {
+            cells = TreeCells.format(this.modelView, this.model, ctx);
+        }
+        for (int i = 0; i < this.columns.length; i++) {
+            this.values.get(i).setText(cells[this.columns[i]]);
         }
     }
 
@@ -18,10 +18,8 @@
 package org.tryton.client.views;
 
 import org.tryton.client.R;
-import org.tryton.client.data.Session;
 import org.tryton.client.models.Model;
 import org.tryton.client.models.ModelView;
-import org.tryton.client.tools.TreeViewFactory;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
@@ -56,21 +54,26 @@ public class TreeSumExtItem extends LinearLayout {
     }
 
     public void reuse(Model model, Context ctx) {
+        this.reuse(model, null, ctx);
+    }
+
+    /** Show a record with its texts from TreeCells, they are computed
+     * if cells is null. */
+    public void reuse(Model model, String[] cells, Context ctx) {
         this.model = model;
-        List<Model> structure = this.modelView.getStructure();
-        for (int i = 0; i < structure.size(); i++) {
-            TextView t = this.values.get(i);
-            Model field = structure.get(i);
-            String fieldName = (String) field.get("name");
-            String name = (String) field.get("string");
-            if (name == null) {
-                name = (String) field.get("name");
+        if (this.model == null) {
+            // Not loaded yet
+            for (TextView t : this.values) {
+                t.setText("");
             }
-            String value = TreeViewFactory.getView(field, this.model,
-                                                   Session.current.prefs,
-                                                   ctx);
-            t.setText(name + " " + value);
-        } 
+            return;
+        }
+        if (cells == null) {
+            cells = TreeCells.format(this.modelView, this.model, ctx);
+        }
+        for (int i = 0; i < cells.length; i++) {
+            this.values.get(i).setText(cells[i]);
+        }
     }
 
     public Model getModel() {
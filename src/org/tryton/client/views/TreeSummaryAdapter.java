@@ -18,6 +18,7 @@
 package org.tryton.client.views;
 
 import org.tryton.client.R;
+import org.tryton.client.data.DataWindow;
 import org.tryton.client.models.Model;
 import org.tryton.client.models.ModelView;
 
@@ -74,19 +75,21 @@ public class TreeSummaryAdapter extends BaseExpandableListAdapter {
                              boolean isLastChild, View convertView,
                              ViewGroup parent) {
         Model m = this.data.get(groupPosition);
+        String[] cells = this.getCells(groupPosition);
         if (convertView != null
             && convertView instanceof TreeSumExtItem
-            && ((TreeSumExtItem)convertView).getModelView().equals(this.modelView) ) {
+            && ((TreeSumExtItem)convertView).getModelView() == this.modelView) {
             // Reusing allows to update a view that goes off-screen to reduce
             // scrolling cpu usage (thus smoothing it).
             TreeSumExtItem item = (TreeSumExtItem) convertView;
-            item.reuse(m, parent.getContext());
+            item.reuse(m, cells, parent.getContext());
             return item;
         } else {
             // Not reusing. Create the view from scratch.
             Context ctx = parent.getContext();
-            TreeSumExtItem item = new TreeSumExtItem(parent.getContext(),
-                                                     this.modelView, m);
+            TreeSumExtItem item = new TreeSumExtItem(ctx, this.modelView,
+                                                     null);
+            item.reuse(m, cells, ctx);
             return item;
         }
     }
@@ -121,4 +124,12 @@ public class TreeSummaryAdapter extends BaseExpandableListAdapter {
         }
     }
 
+    /** Get the texts of a record prepared by TreeCells, if any. */
+    private String[] getCells(int position) {
+        if (this.data instanceof DataWindow) {
+            return (String[]) ((DataWindow) this.data).getFormatted(position);
+        }
+        return null;
+    }
+
 }
\ No newline at end of file
@@ -50,6 +50,11 @@ public class TreeSummaryItem extends LinearLayout {
 
     public void reuse(Model model, Context ctx) {
         this.model = model;
+        if (this.model == null) {
+            // Not loaded yet
+            this.value.setText("");
+            return;
+        }
         this.value.setText(this.model.getString("rec_name"));
     }
 